@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+
+/**
+ * The thin side of the {@link Daemon}: sends its arguments as one request and prints the reply. Uses nothing but the
+ * JDK, so it starts as fast as a JVM can.
+ * <p/>
+ * Arguments: [port number] request words. The file after compile or upload is made absolute here, the daemon has
+ * its own working directory. The token of the daemon is read from {@link #getTokenFile(int)} and sent first. The exit
+ * code is 0 for OK, 1 for ERROR and 2 if there is no daemon.
+ *
+ * @author Dries007
+ */
+public class Client
+{
+    /**
+     * Not in Constants, loading that reads the properties file
+     */
+    public static final int DEFAULT_PORT = 8051;
+
+    /**
+     * Only readable by the user, holds the token the daemon on that port wants
+     */
+    public static File getTokenFile(int port)
+    {
+        return new File(System.getProperty("user.home"), ".j8051" + File.separator + "daemon-" + port + ".token");
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = DEFAULT_PORT;
+        int first = 0;
+        if (args.length >= 2 && args[0].equalsIgnoreCase("port"))
+        {
+            port = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (first >= args.length)
+        {
+            System.err.println("Request expected: compile [file] [optimize] [strip] [object], upload [file] [com port] [baud rate], status or stop.");
+            System.exit(2);
+        }
+        File tokenFile = getTokenFile(port);
+        if (!tokenFile.exists())
+        {
+            System.err.printf("No daemon on port %d, start one with the arguments 'nogui daemon'.%n", port);
+            System.exit(2);
+        }
+        StringBuilder request = new StringBuilder(new String(Files.readAllBytes(tokenFile.toPath()), "US-ASCII").trim()).append('\n');
+        request.append(args[first]);
+        for (int i = first + 1; i < args.length; i++) request.append('\t').append(i == first + 1 ? new File(args[i]).getAbsolutePath() : args[i]);
+        request.append('\n');
+
+        try (Socket socket = new Socket(InetAddress.getByName(null), port))
+        {
+            socket.setTcpNoDelay(true);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            out.write(request.toString());
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.equals("OK")) System.exit(0);
+                if (line.startsWith("ERROR "))
+                {
+                    System.err.println(line.substring(6));
+                    System.exit(1);
+                }
+                System.out.println(line);
+            }
+            System.err.println("The daemon closed the connection without a reply.");
+            System.exit(1);
+        }
+        catch (ConnectException e)
+        {
+            System.err.printf("No daemon on port %d, start one with the arguments 'nogui daemon'.%n", port);
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051;
+
+import net.dries007.j8051.compiler.CompileContext;
+import net.dries007.j8051.compiler.IncludeCache;
+import net.dries007.j8051.compiler.Parser;
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.upload.LoopbackXC888;
+import net.dries007.j8051.upload.UploaderXC888;
+import net.dries007.j8051.util.exceptions.CompileException;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.dries007.j8051.util.Constants.*;
+
+/**
+ * Keeps a warm compiler in one JVM and takes requests from the {@link Client} over a loopback socket, so editors and
+ * scripts don't pay for starting a JVM, loading classes and running cold code on every build.
+ * <p/>
+ * A request is the token of the daemon on the first line, then one line of tab separated words. The token is random and
+ * written to a file only the user can read ({@link Client#getTokenFile(int)}), so other users on the machine can't
+ * use the daemon. The reply is any amount of output lines, the last line is "OK" or "ERROR [message]". Files must be
+ * absolute, quoted includes resolve against the folder of the file, so one daemon serves every folder.
+ * <ul>
+ * <li>compile [file] [optimize] [strip] [object]</li>
+ * <li>upload [file] [com port or loopback] [baud rate]: compile, then upload the hex file</li>
+ * <li>status</li>
+ * <li>stop</li>
+ * </ul>
+ *
+ * @author Dries007
+ */
+public class Daemon
+{
+    private static final String WARM_UP          = "#include <warmup.inc>\n        ORG 0\n        LJMP main\n        ORG 30h\nmain:   MOV A, #FOO\n        MOV DPTR, #table\nloop:   INC A\n        CJNE A, #40h, loop\n        SJMP main\ntable:  DB 1, 2, 3\n        END\n";
+    private static final String WARM_UP_INCLUDE  = "FOO EQU 12h\nBAR DATA 30h\n";
+    private static final int    WARM_UP_COMPILES = 500;
+
+    public final  int             port;
+    private final ExecutorService executor;
+    private final String          encoding = PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT);
+    private final long            started  = System.currentTimeMillis();
+    private final AtomicInteger   requests = new AtomicInteger();
+    /**
+     * One upload at a time, there is only one device
+     */
+    private final Object          uploadLock = new Object();
+    private       ServerSocket    serverSocket;
+    private       byte[]          token;
+
+    public Daemon(int port, int threads)
+    {
+        this.port = port;
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Load all compiler classes and get the JIT to compile the hot paths, before the first request has to wait for it.
+     * The output files are made and thrown away, so writing them is warm as well.
+     */
+    public void warmUp() throws Exception
+    {
+        CompileContext context = new CompileContext("warmup", new CompileContext.Includes()
+        {
+            @Override
+            public String get(String name, boolean system)
+            {
+                return WARM_UP_INCLUDE;
+            }
+        }, new CompileContext.Output()
+        {
+            @Override
+            public OutputStream open(String name)
+            {
+                return new NullOutputStream();
+            }
+        });
+        long start = System.nanoTime();
+        for (int i = 0; i < WARM_UP_COMPILES; i++)
+        {
+            Parser parser = new Parser(WARM_UP, context);
+            while (parser.hasWork()) parser.doWork();
+        }
+        System.out.printf(" -=- Warmed up in %d ms -=- %n", (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Returns after a stop request.
+     */
+    public void serve() throws IOException
+    {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        // Only once the port is ours, so the token of a daemon that already runs is left alone
+        File tokenFile = Client.getTokenFile(port);
+        token = writeToken(tokenFile);
+        System.out.printf(" -=- Listening on %s -=- %n", serverSocket.getLocalSocketAddress());
+        try
+        {
+            //noinspection InfiniteLoopStatement
+            while (true)
+            {
+                final Socket socket = serverSocket.accept();
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        handle(socket);
+                    }
+                });
+            }
+        }
+        catch (SocketException e)
+        {
+            if (!serverSocket.isClosed()) throw e;
+        }
+        finally
+        {
+            executor.shutdown();
+            if (!tokenFile.delete()) tokenFile.deleteOnExit();
+        }
+        System.out.println(" -=- Stopped -=- ");
+    }
+
+    /**
+     * @return the new token, as written to the file
+     */
+    private static byte[] writeToken(File file) throws IOException
+    {
+        if (!file.getParentFile().mkdirs() && !file.getParentFile().isDirectory()) throw new IOException("Can't make " + file.getParent());
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) token.append(String.format("%02x", b));
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try
+        {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // Not POSIX (Windows), the user folder is private there
+            Files.createFile(path);
+        }
+        byte[] bytes = token.toString().getBytes("US-ASCII");
+        Files.write(path, bytes);
+        return bytes;
+    }
+
+    private void handle(Socket socket)
+    {
+        try (Socket s = socket)
+        {
+            s.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+            PrintStream out = new PrintStream(new BufferedOutputStream(s.getOutputStream()), false, "UTF-8");
+            String key = in.readLine();
+            if (key == null) return;
+            if (!MessageDigest.isEqual(key.getBytes("US-ASCII"), token)) // Takes as long for every wrong token
+            {
+                out.println("ERROR Wrong token");
+                out.flush();
+                return;
+            }
+            String request = in.readLine();
+            if (request == null) return;
+            requests.incrementAndGet();
+            String[] args = request.split("\t");
+            try
+            {
+                handle(args, out);
+                out.println("OK");
+            }
+            catch (CompileException e)
+            {
+                // file:line: like other compilers, so editors can jump to it
+                if (e.component == null) out.printf("ERROR %s: %s: %s%n", args[1], e.getClass().getSimpleName(), e.getMessage());
+                else out.printf("ERROR %s:%d: %s: %s%n", args[1], e.component.getSrcLine() + 1, e.getClass().getSimpleName(), e.getMessage());
+            }
+            catch (Exception e)
+            {
+                out.printf("ERROR %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
+            }
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            // The client is gone, nothing to tell it
+        }
+    }
+
+    private void handle(String[] args, PrintStream out) throws Exception
+    {
+        switch (args[0].toLowerCase())
+        {
+            case "compile":
+                if (args.length < 2) throw new IllegalArgumentException("File expected after 'compile'.");
+                boolean optimize = Boolean.parseBoolean(PROPERTIES.getProperty(OPTIMIZE, "false"));
+                boolean strip = Boolean.parseBoolean(PROPERTIES.getProperty(STRIP, "false"));
+                boolean object = false;
+                for (int i = 2; i < args.length; i++)
+                {
+                    switch (args[i].toLowerCase())
+                    {
+                        case "optimize":
+                            optimize = true;
+                            break;
+                        case "strip":
+                            strip = true;
+                            break;
+                        case "object":
+                            object = true;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                }
+                compile(new File(args[1]), optimize, strip, object, out);
+                break;
+            case "upload":
+                if (args.length < 4) throw new IllegalArgumentException("File, com port and baud rate expected after 'upload'.");
+                File file = new File(args[1]);
+                compile(file, Boolean.parseBoolean(PROPERTIES.getProperty(OPTIMIZE, "false")), Boolean.parseBoolean(PROPERTIES.getProperty(STRIP, "false")), false, out);
+                upload(new File(file.getParentFile(), FilenameUtils.getBaseName(file.getName()) + ".hex"), args[2], Integer.parseInt(args[3]), out);
+                break;
+            case "status":
+                out.printf("Up for %d s, %d requests, include cache %d hits %d misses%n", (System.currentTimeMillis() - started) / 1000, requests.get(), IncludeCache.INCLUDE_CACHE.hits, IncludeCache.INCLUDE_CACHE.misses);
+                break;
+            case "stop":
+                out.println("Stopping");
+                serverSocket.close();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown request: " + args[0]);
+        }
+    }
+
+    private void compile(File file, boolean optimize, boolean strip, boolean object, PrintStream out) throws Exception
+    {
+        if (!file.isAbsolute()) throw new IllegalArgumentException("Absolute path expected: " + file);
+        long start = System.nanoTime();
+        ArrayList<File> includePath = new ArrayList<>();
+        if (Main.includeFile != null) includePath.add(Main.includeFile);
+        includePath.add(file.getParentFile());
+        CompileContext context = CompileContext.forFile(file, includePath, encoding);
+        Parser parser = new Parser(context.read(file), context);
+        parser.optimize = optimize;
+        parser.strip = strip;
+        parser.relocatable = object;
+        while (parser.hasWork()) parser.doWork();
+        if (parser.strip) Main.printStripped(parser, out);
+        if (parser.optimize) Main.printOptimizations(parser, out);
+        int bytes = 0;
+        for (Component component : parser.components) if (component.getData() != null) bytes += component.getData().length;
+        out.printf("%s: %d bytes in %.1f ms%n", file.getName(), bytes, (System.nanoTime() - start) / 1e6);
+    }
+
+    private void upload(File hexFile, String comPort, int baudRate, PrintStream out) throws Exception
+    {
+        synchronized (uploadLock)
+        {
+            long start = System.nanoTime();
+            if (comPort.equalsIgnoreCase("loopback"))
+            {
+                LoopbackXC888 device = new LoopbackXC888(baudRate, 0, 0, 0, 0);
+                new UploaderXC888().upload(hexFile, device.getInputStream(), device.getOutputStream(), null);
+                out.printf("Uploaded %d bytes to loopback XC888 in %d ms%n", device.bytesReceived, (System.nanoTime() - start) / 1000000);
+            }
+            else
+            {
+                new UploaderXC888().upload(hexFile, comPort, baudRate, null);
+                out.printf("Uploaded to %s in %d ms%n", comPort, (System.nanoTime() - start) / 1000000);
+            }
+        }
+    }
+}
@@ -30,12 +30,30 @@
 
 package net.dries007.j8051;
 
+import net.dries007.j8051.compiler.BuildCache;
+import net.dries007.j8051.compiler.CompileContext;
+import net.dries007.j8051.compiler.Disassembler;
+import net.dries007.j8051.compiler.Linker;
+import net.dries007.j8051.compiler.ObjectFile;
 import net.dries007.j8051.compiler.Parser;
+import net.dries007.j8051.compiler.Project;
+import net.dries007.j8051.compiler.TimingAnalyzer;
+import net.dries007.j8051.compiler.components.Component;
 import net.dries007.j8051.gui.MainGui;
+import net.dries007.j8051.simulator.BatchRunner;
+import net.dries007.j8051.simulator.Coverage;
+import net.dries007.j8051.simulator.TraceReader;
+import net.dries007.j8051.upload.LoopbackXC888;
+import net.dries007.j8051.upload.UploaderXC888;
+import net.dries007.j8051.util.Helper;
 import org.apache.commons.io.FileUtils;
 
 import javax.swing.*;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import static net.dries007.j8051.util.Constants.*;
 
@@ -47,11 +65,83 @@ public class Main
     public static File srcFile;
     public static File includeFile;
     private static boolean enablegui = true;
+    private static File    vectors;
+    private static File    output;
+    private static int     threads   = Runtime.getRuntime().availableProcessors();
+    private static File    traceFolder;
+    private static File    readTrace;
+    private static int     traceFrom;
+    private static int     traceTo   = 0xFFFF;
+    private static long    traceCycle;
+    private static File    coverage;
+    private static int     loopback;
+    private static long    latency;
+    private static double  errorRate;
+    private static File    disassemble;
+    private static File    symbols;
+    private static boolean optimize;
+    private static boolean analyze;
+    private static boolean strip;
+    private static boolean object;
+    private static final List<File> link = new ArrayList<>();
+    private static File    project;
+    private static File    cache;
+    private static boolean daemon;
+    private static int     port      = Client.DEFAULT_PORT;
 
     public static void main(String[] args) throws Exception
     {
         parseArgs(args);
 
+        if (readTrace != null)
+        {
+            try (TraceReader reader = new TraceReader(readTrace))
+            {
+                reader.print(System.out, traceFrom, traceTo, traceCycle);
+            }
+            return;
+        }
+
+        if (disassemble != null)
+        {
+            Disassembler disassembler = new Disassembler();
+            @SuppressWarnings("unchecked")
+            List<String> hex = FileUtils.readLines(disassemble, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT));
+            disassembler.loadHex(hex);
+            if (symbols != null)
+            {
+                @SuppressWarnings("unchecked")
+                List<String> lines = FileUtils.readLines(symbols, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT));
+                disassembler.loadSymbols(lines);
+            }
+            PrintStream out = output == null ? System.out : new PrintStream(output, "UTF-8");
+            disassembler.disassemble(out);
+            if (out != System.out) out.close();
+            return;
+        }
+
+        if (project != null)
+        {
+            Project build = new Project(project, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT));
+            if (output != null) build.output = output;
+            build.build(threads, System.out);
+            return;
+        }
+
+        if (daemon)
+        {
+            Daemon server = new Daemon(port, threads);
+            server.warmUp();
+            server.serve();
+            return;
+        }
+
+        if (!link.isEmpty())
+        {
+            link();
+            return;
+        }
+
         if (srcFile == null)
         {
             if (PROPERTIES.containsKey(SRC_FILE)) Main.setSrcFile(new File(PROPERTIES.getProperty(SRC_FILE)));
@@ -78,10 +168,138 @@ public class Main
             }
             System.out.println(" -=- File used -=- ");
             System.out.println(Main.srcFile.getAbsolutePath());
+            if (cache != null && !object && !analyze && vectors == null && loopback == 0)
+            {
+                // Nothing needs the components, so the image is enough
+                BuildCache buildCache = new BuildCache(cache);
+                long start = System.nanoTime();
+                buildCache.compile(FileUtils.readFileToString(Main.srcFile, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT)), CompileContext.getDefault(), optimize || Boolean.parseBoolean(PROPERTIES.getProperty(OPTIMIZE, "false")), strip || Boolean.parseBoolean(PROPERTIES.getProperty(STRIP, "false")));
+                System.out.printf(" -=- Done (%s) in %.1f ms -=- %n", buildCache.getHits() != 0 ? "cached" : "compiled", (System.nanoTime() - start) / 1e6);
+                return;
+            }
             Parser parser = new Parser(FileUtils.readFileToString(Main.srcFile, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT)));
+            parser.optimize = optimize || Boolean.parseBoolean(PROPERTIES.getProperty(OPTIMIZE, "false"));
+            parser.strip = strip || Boolean.parseBoolean(PROPERTIES.getProperty(STRIP, "false"));
+            if (object) parser.relocatable = true;
             while (parser.hasWork()) parser.doWork();
             System.out.println(" -=- Done -=- ");
+            if (parser.strip) printStripped(parser, System.out);
+            if (parser.optimize) printOptimizations(parser, System.out);
+            if (analyze) printAnalysis(parser);
+            if (vectors != null)
+            {
+                System.out.println(" -=- Simulating -=- ");
+                long start = System.currentTimeMillis();
+                PrintStream out = output == null ? System.out : new PrintStream(output, "UTF-8");
+                BatchRunner runner = new BatchRunner(parser.components, threads);
+                if (traceFolder != null)
+                {
+                    if (!traceFolder.isDirectory() && !traceFolder.mkdirs()) throw new RuntimeException("Could not create trace folder " + traceFolder);
+                    runner.setTraceFolder(traceFolder);
+                }
+                Coverage total = coverage == null ? null : new Coverage();
+                runner.setCoverage(total);
+                runner.run(BatchRunner.getVectors(vectors), out);
+                if (out != System.out) out.close();
+                if (total != null)
+                {
+                    @SuppressWarnings("unchecked")
+                    List<String> lines = FileUtils.readLines(Main.srcFile, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT));
+                    PrintStream report = new PrintStream(coverage, "UTF-8");
+                    total.printReport(parser.components, lines, report);
+                    report.close();
+                }
+                System.out.printf(" -=- Done in %d ms on %d threads -=- %n", System.currentTimeMillis() - start, threads);
+            }
+            if (loopback != 0) uploadLoopback(parser);
+        }
+    }
+
+    static void printStripped(Parser parser, PrintStream out)
+    {
+        out.println(" -=- Stripped -=- ");
+        int bytes = 0;
+        for (Object[] row : parser.stripped)
+        {
+            out.printf("Line %d: %s, %d bytes%n", (Integer) row[0] + 1, row[1], row[2]);
+            bytes += (Integer) row[2];
+        }
+        out.printf("Total: %d labels, %d bytes removed%n", parser.stripped.size(), bytes);
+    }
+
+    static void printOptimizations(Parser parser, PrintStream out)
+    {
+        out.println(" -=- Optimizations -=- ");
+        int pass = 0, bytes = 0, cycles = 0, totalBytes = 0, totalCycles = 0;
+        for (Object[] row : parser.optimizations)
+        {
+            if ((Integer) row[0] != pass)
+            {
+                if (pass != 0) out.printf("Pass %d: %d bytes, %d cycles saved%n", pass, bytes, cycles);
+                pass = (Integer) row[0];
+                bytes = cycles = 0;
+            }
+            out.printf("Line %d: %s%n", (Integer) row[1] + 1, row[2]);
+            bytes += (Integer) row[3];
+            cycles += (Integer) row[4];
+            totalBytes += (Integer) row[3];
+            totalCycles += (Integer) row[4];
+        }
+        if (pass != 0) out.printf("Pass %d: %d bytes, %d cycles saved%n", pass, bytes, cycles);
+        out.printf("Total: %d bytes, %d cycles saved%n", totalBytes, totalCycles);
+    }
+
+    private static void printAnalysis(Parser parser)
+    {
+        System.out.println(" -=- Timing analysis -=- ");
+        long start = System.nanoTime();
+        Object[][] report = new TimingAnalyzer(parser.components).getReport(parser.symbols);
+        long time = System.nanoTime() - start;
+        System.out.printf("%-20s %-8s %10s %10s  %s%n", "Label", "Address", "Cycles", "Stack", "Note");
+        for (Object[] row : report) System.out.printf("%-20s %-8s %10s %10s  %s%n", row);
+        System.out.printf("%d routines in %d ms%n", report.length, time / 1000000);
+    }
+
+    private static void link() throws Exception
+    {
+        long start = System.nanoTime();
+        ArrayList<ObjectFile> objects = new ArrayList<>(link.size());
+        for (File file : link) objects.add(ObjectFile.read(file));
+        Linker linker = new Linker(objects);
+        linker.link();
+        File file = output == null ? new File(link.get(0).getParentFile(), objects.get(0).name + ".hex") : output;
+        linker.writeHexFile(CompileContext.forFile(file, new ArrayList<File>(), PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT)));
+        System.out.println(" -=- Linked -=- ");
+        System.out.printf("%-20s %-8s %8s %12s%n", "Module", "Base", "Size", "Relocations");
+        for (int i = 0; i < objects.size(); i++) System.out.printf("%-20s 0x%04X %8d %12d%n", objects.get(i).name, linker.bases[i], objects.get(i).getSize(), objects.get(i).relocations.size());
+        System.out.printf("%d public symbols, %s written in %d ms%n", linker.symbols.size(), file, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Upload the hex file to an emulated bootloader, to measure the upload path without hardware.
+     */
+    private static void uploadLoopback(Parser parser) throws Exception
+    {
+        System.out.printf(" -=- Uploading to loopback XC888 at %d baud -=- %n", loopback);
+        LoopbackXC888 device = new LoopbackXC888(loopback, latency, errorRate, errorRate, 0);
+        long start = System.nanoTime();
+        try
+        {
+            new UploaderXC888().upload(device.getInputStream(), device.getOutputStream(), null);
         }
+        catch (IOException e)
+        {
+            System.out.println("Upload failed: " + e.getMessage());
+        }
+        long time = System.nanoTime() - start;
+        int errors = 0;
+        for (Component component : parser.components)
+        {
+            if (component.getData() == null) continue;
+            for (int i = 0; i < component.getData().length; i++) if (device.flash[(component.address + i) & 0xFFFF] != component.getData()[i]) errors++;
+        }
+        System.out.printf("%d bytes in %d blocks in %d ms, %.0f bytes/s%n", device.bytesReceived, device.blocks, time / 1000000, device.bytesReceived * 1e9 / time);
+        System.out.printf("%d bytes corrupted, %d responses dropped, %d bytes wrong in flash, started at %d%n", device.corrupted, device.dropped, errors, device.executed);
     }
 
     private static void parseArgs(String[] args)
@@ -100,6 +318,112 @@ public class Main
                         setSrcFile(new File(args[i]));
                     }
                     else throw new RuntimeException("File expected as argument after 'file'.");
+                    break;
+                case "optimize":
+                    optimize = true;
+                    break;
+                case "analyze":
+                    analyze = true;
+                    break;
+                case "strip":
+                    strip = true;
+                    break;
+                case "object":
+                    object = true;
+                    break;
+                case "link":
+                    i++;
+                    if (i < args.length) link.add(new File(args[i]));
+                    else throw new RuntimeException("Object file expected as argument after 'link'.");
+                    break;
+                case "project":
+                    i++;
+                    if (i < args.length) project = new File(args[i]);
+                    else throw new RuntimeException("Project file expected as argument after 'project'.");
+                    break;
+                case "daemon":
+                    daemon = true;
+                    break;
+                case "port":
+                    i++;
+                    if (i < args.length) port = Integer.parseInt(args[i]);
+                    else throw new RuntimeException("Port number expected as argument after 'port'.");
+                    break;
+                case "cache":
+                    i++;
+                    if (i < args.length) cache = new File(args[i]);
+                    else throw new RuntimeException("Folder expected as argument after 'cache'.");
+                    break;
+                case "simulate":
+                    i++;
+                    if (i < args.length) vectors = new File(args[i]);
+                    else throw new RuntimeException("File or folder expected as argument after 'simulate'.");
+                    break;
+                case "output":
+                    i++;
+                    if (i < args.length) output = new File(args[i]);
+                    else throw new RuntimeException("File expected as argument after 'output'.");
+                    break;
+                case "threads":
+                    i++;
+                    if (i < args.length) threads = Integer.parseInt(args[i]);
+                    else throw new RuntimeException("Number expected as argument after 'threads'.");
+                    break;
+                case "trace":
+                    i++;
+                    if (i < args.length) traceFolder = new File(args[i]);
+                    else throw new RuntimeException("Folder expected as argument after 'trace'.");
+                    break;
+                case "coverage":
+                    i++;
+                    if (i < args.length) coverage = new File(args[i]);
+                    else throw new RuntimeException("File expected as argument after 'coverage'.");
+                    break;
+                case "loopback":
+                    i++;
+                    if (i < args.length) loopback = Integer.parseInt(args[i]);
+                    else throw new RuntimeException("Baud rate expected as argument after 'loopback'.");
+                    break;
+                case "latency":
+                    i++;
+                    if (i < args.length) latency = Long.parseLong(args[i]);
+                    else throw new RuntimeException("Microseconds expected as argument after 'latency'.");
+                    break;
+                case "errorrate":
+                    i++;
+                    if (i < args.length) errorRate = Double.parseDouble(args[i]);
+                    else throw new RuntimeException("Chance expected as argument after 'errorrate'.");
+                    break;
+                case "disassemble":
+                    i++;
+                    if (i < args.length) disassemble = new File(args[i]);
+                    else throw new RuntimeException("Hex file expected as argument after 'disassemble'.");
+                    break;
+                case "symbols":
+                    i++;
+                    if (i < args.length) symbols = new File(args[i]);
+                    else throw new RuntimeException("File expected as argument after 'symbols'.");
+                    break;
+                case "readtrace":
+                    i++;
+                    if (i < args.length) readTrace = new File(args[i]);
+                    else throw new RuntimeException("Trace expected as argument after 'readtrace'.");
+                    break;
+                case "from":
+                    i++;
+                    if (i < args.length) traceFrom = Helper.parseToInt(args[i]);
+                    else throw new RuntimeException("Address expected as argument after 'from'.");
+                    break;
+                case "to":
+                    i++;
+                    if (i < args.length) traceTo = Helper.parseToInt(args[i]);
+                    else throw new RuntimeException("Address expected as argument after 'to'.");
+                    break;
+                case "cycle":
+                    i++;
+                    if (i < args.length) traceCycle = Long.parseLong(args[i]);
+                    else throw new RuntimeException("Number expected as argument after 'cycle'.");
+                    break;
             }
         }
     }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled images on disk, keyed by what went into them, so an unchanged source is never parsed twice.
+ * <p/>
+ * The key is the SHA-1 of the cache format, the compiler version, the options, the encoding and the source text.
+ * [key].deps lists the includes the last compile of that key used. The SHA-1 of the key and the current hash of each
+ * of those includes names [full key].img, which holds the {@link Image} and every file the compile made, by extension
+ * so a copy of the source under another name is a hit as well. On a hit the files are written again (with the name of
+ * the context) and the Parser is never made. Anything that goes wrong reading the cache is a miss.
+ *
+ * @author Dries007
+ */
+public class BuildCache
+{
+    private static final int    MAGIC   = 0x4A38494D; // J8IM
+    private static final int    VERSION = 3;
+    /**
+     * The implementation version from the jar, or the time the compiler was built
+     */
+    private static final String COMPILER_VERSION;
+
+    static
+    {
+        String version = Parser.class.getPackage().getImplementationVersion();
+        if (version == null)
+        {
+            URL url = Parser.class.getResource("Parser.class");
+            try
+            {
+                version = "built " + url.openConnection().getLastModified();
+            }
+            catch (IOException e)
+            {
+                version = "unknown";
+            }
+        }
+        COMPILER_VERSION = version;
+    }
+
+    public final File folder;
+    private      int  hits;
+    private      int  misses;
+
+    public BuildCache(File folder)
+    {
+        this.folder = folder;
+    }
+
+    /**
+     * Like a Parser with the context and options, but from the cache if the source and its includes didn't change.
+     * The optimize and strip reports of the Parser are not kept, so they are only there on a miss.
+     */
+    public Image compile(String src, CompileContext context, boolean optimize, boolean strip) throws Exception
+    {
+        String key = DigestUtils.sha1Hex(MAGIC + "\n" + VERSION + "\n" + COMPILER_VERSION + "\n" + optimize + "\n" + strip + "\n" + context.encoding + "\n" + src);
+        File deps = new File(folder, key + ".deps");
+        String fullKey = getFullKey(key, deps, context);
+        if (fullKey != null)
+        {
+            File file = new File(folder, fullKey + ".img");
+            if (file.exists())
+            {
+                try
+                {
+                    Image image = read(file, context);
+                    count(true);
+                    return image;
+                }
+                catch (IOException ignored)
+                {
+                    // Corrupt or old version, compile again
+                }
+            }
+        }
+        count(false);
+
+        final String name = context.name;
+        final LinkedHashMap<String, ByteArrayOutputStream> files = new LinkedHashMap<>();
+        Parser parser = new Parser(src, context.withOutput(new CompileContext.Output()
+        {
+            @Override
+            public OutputStream open(String file) throws IOException
+            {
+                if (!file.startsWith(name)) throw new IOException("Can't cache " + file + ", it isn't named after " + name);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                files.put(file.substring(name.length()), out);
+                return out;
+            }
+        }));
+        parser.optimize = optimize;
+        parser.strip = strip;
+        while (parser.hasWork()) parser.doWork();
+        Image image = new Image(parser);
+        if (context.output != null)
+        {
+            for (Map.Entry<String, ByteArrayOutputStream> entry : files.entrySet())
+            {
+                try (OutputStream out = context.output.open(name + entry.getKey()))
+                {
+                    entry.getValue().writeTo(out);
+                }
+            }
+        }
+
+        try
+        {
+            if (!folder.mkdirs() && !folder.isDirectory()) throw new IOException("Can't make " + folder);
+            StringBuilder list = new StringBuilder();
+            for (String include : parser.includeHashes.keySet()) list.append(include).append('\n');
+            write(deps, list.toString().getBytes("UTF-8"));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                image.write(out);
+                out.writeInt(files.size());
+                for (Map.Entry<String, ByteArrayOutputStream> entry : files.entrySet())
+                {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    entry.getValue().writeTo(out);
+                }
+            }
+            write(new File(folder, DigestUtils.sha1Hex(key + "\n" + parser.includeHashes) + ".img"), bytes.toByteArray());
+        }
+        catch (IOException ignored)
+        {
+            // Read only folder, the next compile is a miss as well
+        }
+        return image;
+    }
+
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+    private synchronized void count(boolean hit)
+    {
+        if (hit) hits++;
+        else misses++;
+    }
+
+    /**
+     * @return null if there is no deps file or one of the includes can't be found now
+     */
+    private static String getFullKey(String key, File deps, CompileContext context)
+    {
+        if (!deps.exists()) return null;
+        LinkedHashMap<String, String> includeHashes = new LinkedHashMap<>();
+        try
+        {
+            @SuppressWarnings("unchecked")
+            List<String> lines = FileUtils.readLines(deps, "UTF-8");
+            for (String include : lines)
+            {
+                if (include.length() < 3) continue;
+                String name = include.substring(1, include.length() - 1);
+                includeHashes.put(include, Preprocessor.resolve(context, null, name, include.charAt(0) == '<').hash);
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+        return DigestUtils.sha1Hex(key + "\n" + includeHashes);
+    }
+
+    private static Image read(File file, CompileContext context) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a cached image: " + file);
+            Image image = new Image(in);
+            ArrayList<Object[]> files = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--)
+            {
+                String extension = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                files.add(new Object[]{extension, data});
+            }
+            // Only write once all of it was read, a corrupt entry leaves the old files
+            if (context.output != null)
+            {
+                for (Object[] entry : files)
+                {
+                    try (OutputStream out = context.output.open(context.name + entry[0]))
+                    {
+                        out.write((byte[]) entry[1]);
+                    }
+                }
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Through a temporary file, so other processes never see half an entry
+     */
+    private void write(File file, byte[] data) throws IOException
+    {
+        File tmp = File.createTempFile(file.getName(), ".tmp", folder);
+        try (OutputStream out = new FileOutputStream(tmp))
+        {
+            IOUtils.write(data, out);
+        }
+        if (!tmp.renameTo(file))
+        {
+            // Windows won't rename over an existing file
+            if (!file.delete() || !tmp.renameTo(file))
+            {
+                if (!tmp.delete()) tmp.deleteOnExit();
+                throw new IOException("Can't write " + file);
+            }
+        }
+    }
+}
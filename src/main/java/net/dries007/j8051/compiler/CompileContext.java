@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.Main;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static net.dries007.j8051.util.Constants.*;
+
+/**
+ * Everything a compile needs from outside the source text: its name, where includes are found, how text is encoded
+ * and where the output files go. Nothing in the compiler reads Main or the properties, so parsers with their own
+ * context can run at the same time.
+ *
+ * @author Dries007
+ */
+public class CompileContext
+{
+    /**
+     * Base name of the output files and the object file
+     */
+    public final String       name;
+    /**
+     * Where #include "..." is relative to, null for the working directory
+     */
+    public final File         folder;
+    /**
+     * Searched in order for #include &lt;...&gt;
+     */
+    public final List<File>   includePath;
+    /**
+     * Null for the platform default
+     */
+    public final String       encoding;
+    /**
+     * If not null, all includes come from here instead of files
+     */
+    public final Includes     includes;
+    /**
+     * If null, no files are made
+     */
+    public final Output       output;
+
+    public CompileContext(String name, List<File> includePath, String encoding, Output output)
+    {
+        this(name, null, includePath, encoding, null, output);
+    }
+
+    /**
+     * Without files, see {@link Image#compile(String, Includes)}
+     */
+    public CompileContext(String name, Includes includes, Output output)
+    {
+        this(name, null, new ArrayList<File>(), null, includes, output);
+    }
+
+    private CompileContext(String name, File folder, List<File> includePath, String encoding, Includes includes, Output output)
+    {
+        this.name = name;
+        this.folder = folder;
+        this.includePath = includePath;
+        this.encoding = encoding;
+        this.includes = includes;
+        this.output = output;
+    }
+
+    /**
+     * @return the same context, with the output somewhere else
+     */
+    public CompileContext withOutput(Output output)
+    {
+        return new CompileContext(name, folder, includePath, encoding, includes, output);
+    }
+
+    /**
+     * For a file on disk, quoted includes are relative to it and output goes next to it.
+     */
+    public static CompileContext forFile(File srcFile, List<File> includePath, String encoding)
+    {
+        File folder = srcFile.getAbsoluteFile().getParentFile();
+        return new CompileContext(FilenameUtils.getBaseName(srcFile.getName()), folder, includePath, encoding, null, toFolder(folder));
+    }
+
+    /**
+     * The IDE and command line settings: Main.srcFile, Main.includeFile and the encoding from the properties.
+     * Only to be called from the thread that owns those. Quoted includes stay relative to the working directory, like
+     * they always were for the IDE and command line.
+     */
+    public static CompileContext getDefault()
+    {
+        ArrayList<File> includePath = new ArrayList<>();
+        if (Main.includeFile != null) includePath.add(Main.includeFile);
+        String encoding = PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT);
+        if (Main.srcFile == null) return new CompileContext("out", includePath, encoding, null);
+        CompileContext context = forFile(Main.srcFile, includePath, encoding);
+        return new CompileContext(context.name, null, includePath, encoding, null, context.output);
+    }
+
+    public static Output toFolder(final File folder)
+    {
+        return new Output()
+        {
+            @Override
+            public OutputStream open(String name) throws IOException
+            {
+                return new FileOutputStream(new File(folder, name));
+            }
+        };
+    }
+
+    public String read(File file) throws IOException
+    {
+        return FileUtils.readFileToString(file, encoding);
+    }
+
+    /**
+     * @param extension with the dot, added to the name
+     */
+    public void writeLines(String extension, Collection<String> lines) throws IOException
+    {
+        try (OutputStream out = new BufferedOutputStream(output.open(name + extension)))
+        {
+            IOUtils.writeLines(lines, null, out, encoding);
+        }
+    }
+
+    /**
+     * @param extension with the dot, added to the name
+     */
+    public void writeString(String extension, String text) throws IOException
+    {
+        try (OutputStream out = new BufferedOutputStream(output.open(name + extension)))
+        {
+            IOUtils.write(text, out, encoding);
+        }
+    }
+
+    /**
+     * Includes that are not files, like the sources a test harness keeps in memory.
+     */
+    public static interface Includes
+    {
+        /**
+         * @param system true for #include &lt;...&gt;, false for #include "..."
+         * @return the text, null if there is no such include
+         */
+        String get(String name, boolean system) throws IOException;
+    }
+
+    /**
+     * Where the files made by a compile go.
+     */
+    public static interface Output
+    {
+        /**
+         * @param name a file name, like main.hex
+         */
+        OutputStream open(String name) throws IOException;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.Instruction.Argument;
+import net.dries007.j8051.compiler.components.Symbol;
+import net.dries007.j8051.util.Helper;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a code image back into assembler, decoding with {@link Instruction#INSTRUCTIONS}.
+ * <p/>
+ * Linear sweep in 2 passes over the loaded bytes: the first collects the jump and call targets, the second prints.
+ * Targets get the name from the symbols if there is one, otherwise L_xxxx. Bytes that don't form a complete instruction become DB.
+ * All state is in flat arrays and bitmaps, so a full 64K image takes a few ms.
+ *
+ * @author Dries007
+ */
+public class Disassembler
+{
+    public static final int SIZE = 0x10000;
+
+    private static final int    COMMENT_COLUMN = 40;
+    private static final char[] HEX_DIGITS     = "0123456789ABCDEF".toCharArray();
+
+    private final byte[]   image   = new byte[SIZE];
+    private final long[]   loaded  = new long[SIZE >>> 6];
+    private final long[]   targets = new long[SIZE >>> 6];
+    private final long[]   starts  = new long[SIZE >>> 6];
+    private final String[] labels  = new String[SIZE];
+
+    private final StringBuilder line = new StringBuilder(80);
+
+    public void load(int address, int value)
+    {
+        address &= 0xFFFF;
+        image[address] = (byte) value;
+        loaded[address >>> 6] |= 1L << address;
+    }
+
+    public void load(int address, byte[] data)
+    {
+        for (int i = 0; i < data.length; i++) load(address + i, data[i]);
+    }
+
+    public void loadHex(List<String> lines) throws IOException
+    {
+        for (String line : lines)
+        {
+            if (line.length() == 0 || line.charAt(0) != ':') continue;
+            int type = Integer.parseInt(line.substring(7, 9), 16);
+            if (type != 0) break;
+            int length = Integer.parseInt(line.substring(1, 3), 16);
+            int address = Integer.parseInt(line.substring(3, 7), 16);
+            int sum = length + (address & 0xFF) + (address >>> 8);
+            for (int i = 0; i < length; i++)
+            {
+                int bt = Integer.parseInt(line.substring(9 + 2 * i, 11 + 2 * i), 16);
+                load(address + i, bt);
+                sum += bt;
+            }
+            if (Integer.parseInt(line.substring(9 + 2 * length, 11 + 2 * length), 16) != (((~sum) + 1) & 0xFF)) throw new IOException("Checksum error in hex file!");
+        }
+    }
+
+    public void setLabel(int address, String name)
+    {
+        labels[address & 0xFFFF] = name;
+    }
+
+    /**
+     * Use the labels of a compiled program
+     */
+    public void setLabels(Map<String, Symbol> symbols)
+    {
+        for (Symbol symbol : symbols.values()) if (symbol.type == Symbol.Type.LABEL && symbol.intValue != null) setLabel(symbol.intValue, symbol.key);
+    }
+
+    /**
+     * Symbol file: one symbol per line, "name address" or "name LABEL address [size]" (the .sym file). Other types and comments are ignored.
+     */
+    public void loadSymbols(List<String> lines)
+    {
+        for (String line : lines)
+        {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == ';') continue;
+            String[] split = line.split("\\s+");
+            if (split.length < 2 || (split.length > 2 && !split[1].equalsIgnoreCase(Symbol.Type.LABEL.name()))) continue;
+            try
+            {
+                setLabel(Helper.parseToInt(split[split.length > 2 ? 2 : 1]), split[0]);
+            }
+            catch (NumberFormatException ignored)
+            {
+                // Header line or a symbol without a value
+            }
+        }
+    }
+
+    /**
+     * Disassemble everything that was loaded
+     */
+    public void disassemble(Appendable out) throws IOException
+    {
+        for (int pc = next(0); pc != -1; ) pc = sweep(pc, null);
+        for (int pc = next(0); pc != -1; )
+        {
+            out.append("ORG ");
+            line.setLength(0);
+            appendHex(line, pc, 4);
+            out.append(line).append('\n');
+            pc = sweep(pc, out);
+        }
+        out.append("END\n");
+    }
+
+    /**
+     * Go over one block of loaded bytes. Without output, this only collects targets and instruction starts.
+     *
+     * @return the start of the next block or -1
+     */
+    private int sweep(int pc, Appendable out) throws IOException
+    {
+        while (pc < SIZE && isLoaded(pc))
+        {
+            final int opcode = image[pc] & 0xFF;
+            final Instruction instruction = Instruction.INSTRUCTIONS[opcode];
+            int size = instruction.size;
+            for (int i = 1; i < size; i++) if (pc + i >= SIZE || !isLoaded(pc + i)) size = 0;
+            if (instruction.type == Instruction.Type.Undefined) size = 0;
+
+            if (out == null)
+            {
+                if (size != 0)
+                {
+                    starts[pc >>> 6] |= 1L << pc;
+                    int target = getTarget(pc, instruction);
+                    if (target != -1) targets[target >>> 6] |= 1L << target;
+                }
+            }
+            else
+            {
+                line.setLength(0);
+                if (labels[pc] != null || isSet(targets, pc))
+                {
+                    appendLabel(line, pc);
+                    out.append(line).append(":\n");
+                    line.setLength(0);
+                }
+                line.append("        ");
+                if (size == 0)
+                {
+                    line.append("DB      ");
+                    appendHex(line, opcode, 2);
+                }
+                else appendInstruction(pc, instruction);
+                while (line.length() < COMMENT_COLUMN) line.append(' ');
+                line.append("; ");
+                appendHex(line, pc, 4);
+                for (int i = 0; i < Math.max(size, 1); i++)
+                {
+                    line.append(' ');
+                    appendDigits(line, image[pc + i], 2);
+                }
+                out.append(line).append('\n');
+            }
+            pc += Math.max(size, 1);
+        }
+        return pc >= SIZE ? -1 : next(pc);
+    }
+
+    private void appendInstruction(int pc, Instruction instruction)
+    {
+        line.append(instruction.type.name());
+        if (instruction.arguments.length == 0) return;
+        while (line.length() < 16) line.append(' ');
+
+        for (int i = 0, offset = 1; i < instruction.arguments.length; offset += instruction.arguments[i].bytesAdded, i++)
+        {
+            if (i != 0) line.append(", ");
+            int at = offset;
+            if (instruction.reverseOperands && i < 2) at = i == 0 ? 1 + instruction.arguments[1].bytesAdded : 1; // Because of 0x85
+            Argument argument = instruction.arguments[i];
+            int value = argument.bytesAdded == 0 ? 0 : image[pc + at] & 0xFF;
+            if (argument.bytesAdded == 2) value = (value << 8) | (image[pc + at + 1] & 0xFF);
+            switch (argument)
+            {
+                case ADDR11:
+                case ADDR16:
+                case REL:
+                    int target = getTarget(pc, instruction);
+                    if (labels[target] != null || isSet(starts, target)) appendLabel(line, target);
+                    else appendHex(line, target, 4);
+                    break;
+                case DIRECT:
+                case BIT:
+                    appendHex(line, value, 2);
+                    break;
+                case SLASH_BIT:
+                    line.append('/');
+                    appendHex(line, value, 2);
+                    break;
+                case DATA:
+                    line.append('#');
+                    appendHex(line, value, 2);
+                    break;
+                case DATA16:
+                    line.append('#');
+                    appendHex(line, value, 4);
+                    break;
+                default:
+                    line.append(argument.string);
+            }
+        }
+    }
+
+    /**
+     * @return the address an AJMP/ACALL, LJMP/LCALL or relative jump goes to, or -1
+     */
+    private int getTarget(int pc, Instruction instruction)
+    {
+        Argument[] arguments = instruction.arguments;
+        for (int i = 0, offset = 1; i < arguments.length; offset += arguments[i].bytesAdded, i++)
+        {
+            switch (arguments[i])
+            {
+                case ADDR11:
+                    return ((pc + instruction.size) & 0xF800) | ((instruction.opcode & 0xE0) << 3) | (image[pc + offset] & 0xFF);
+                case ADDR16:
+                    return ((image[pc + offset] & 0xFF) << 8) | (image[pc + offset + 1] & 0xFF);
+                case REL:
+                    return (pc + instruction.size + image[pc + offset]) & 0xFFFF;
+            }
+        }
+        return -1;
+    }
+
+    private void appendLabel(StringBuilder sb, int address)
+    {
+        if (labels[address] != null) sb.append(labels[address]);
+        else
+        {
+            sb.append("L_");
+            appendDigits(sb, address, 4);
+        }
+    }
+
+    private boolean isLoaded(int address)
+    {
+        return isSet(loaded, address);
+    }
+
+    private static boolean isSet(long[] bitmap, int address)
+    {
+        return (bitmap[address >>> 6] & (1L << address)) != 0;
+    }
+
+    /**
+     * @return the first loaded address from address on, or -1
+     */
+    private int next(int address)
+    {
+        int word = address >>> 6;
+        long bits = loaded[word] & (-1L << address);
+        while (bits == 0)
+        {
+            if (++word == loaded.length) return -1;
+            bits = loaded[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Assembler notation, 0FFh instead of FFh so it's never mistaken for a symbol
+     */
+    private static void appendHex(StringBuilder sb, int value, int digits)
+    {
+        if (((value >>> (4 * (digits - 1))) & 0xF) > 9) sb.append('0');
+        appendDigits(sb, value, digits);
+        sb.append('h');
+    }
+
+    private static void appendDigits(StringBuilder sb, int value, int digits)
+    {
+        for (int i = digits - 1; i >= 0; i--) sb.append(HEX_DIGITS[(value >>> (4 * i)) & 0xF]);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.compiler.components.Symbol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The result of a compile without any files: the code, the symbols and the source line of every byte.
+ * Meant for embedding and test harnesses, see {@link #compile(String, CompileContext.Includes)}.
+ *
+ * @author Dries007
+ */
+public class Image
+{
+    private static final CompileContext.Includes NO_INCLUDES = new CompileContext.Includes()
+    {
+        @Override
+        public String get(String name, boolean system)
+        {
+            return null;
+        }
+    };
+
+    /**
+     * From address 0 up to the last byte used, bytes not used are 0xFF (like erased flash)
+     */
+    public final byte[]               code;
+    /**
+     * The source line (0 based) that made every byte of code, -1 if none did or if it came from an include file
+     */
+    public final int[]                lines;
+    /**
+     * All defined symbols (labels, EQU, DATA, BIT), the names are not case sensitive
+     */
+    public final Map<String, Integer> symbols = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    /**
+     * To load into a simulator or analyse, empty if the image came from the {@link BuildCache}
+     */
+    public final List<Component>      components;
+
+    /**
+     * @param parser done
+     */
+    public Image(Parser parser)
+    {
+        components = parser.components;
+        int size = 0;
+        for (Component component : components) if (component.getData() != null && component.getData().length != 0) size = Math.max(size, component.address + component.getData().length);
+        code = new byte[size];
+        lines = new int[size];
+        Arrays.fill(code, (byte) 0xFF);
+        Arrays.fill(lines, -1);
+        for (Component component : components)
+        {
+            if (component.getData() == null) continue;
+            for (int i = 0; i < component.getData().length; i++)
+            {
+                code[component.address + i] = (byte) component.getData()[i];
+                lines[component.address + i] = component.isIncluded() ? -1 : component.getSrcLine();
+            }
+        }
+        for (Symbol symbol : parser.symbols.values()) if (symbol != parser.currentLocation && symbol.isDefined()) symbols.put(symbol.key, symbol.intValue);
+    }
+
+    /**
+     * Read back what {@link #write(DataOutputStream)} wrote
+     */
+    public Image(DataInputStream in) throws IOException
+    {
+        components = Collections.emptyList();
+        code = new byte[in.readInt()];
+        in.readFully(code);
+        lines = new int[code.length];
+        for (int i = 0; i < lines.length; i++) lines[i] = in.readInt();
+        for (int i = in.readInt(); i > 0; i--) symbols.put(in.readUTF(), in.readInt());
+    }
+
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(code.length);
+        out.write(code);
+        for (int line : lines) out.writeInt(line);
+        out.writeInt(symbols.size());
+        for (Map.Entry<String, Integer> entry : symbols.entrySet())
+        {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    /**
+     * Compile source text without reading or writing files.
+     *
+     * @param includes null if the source has no includes, they are an error then
+     */
+    public static Image compile(String src, CompileContext.Includes includes) throws Exception
+    {
+        if (includes == null) includes = NO_INCLUDES;
+        Parser parser = new Parser(src, new CompileContext("memory", includes, null));
+        while (parser.hasWork()) parser.doWork();
+        return new Image(parser);
+    }
+
+    /**
+     * @return the address of the first byte made by a source line, -1 if it made none
+     */
+    public int getAddress(int srcLine)
+    {
+        for (int i = 0; i < lines.length; i++) if (lines[i] == srcLine) return i;
+        return -1;
+    }
+}
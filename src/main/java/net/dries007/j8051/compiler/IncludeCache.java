@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static net.dries007.j8051.util.Constants.*;
+
+/**
+ * Keeps included files read, split and trimmed between compiles.
+ * <p/>
+ * An entry is reused when the last modified time and size still match. If they don't, or if the file was modified
+ * so recently that the time stamp can't be trusted, the contents are read again and only parsed if the hash changed.
+ * The hash (SHA-1) also names the precompiled header of the file, see {@link PrecompiledHeader}.
+ *
+ * @author Dries007
+ */
+public class IncludeCache
+{
+    public static final IncludeCache INCLUDE_CACHE = new IncludeCache();
+    /**
+     * Some file systems only store the modified time in seconds (or 2 seconds, FAT)
+     */
+    private static final long MTIME_RESOLUTION = 2000;
+    private static final int  VIRTUAL_ENTRIES  = 256;
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    /**
+     * By hash, the least recently used is dropped
+     */
+    private final LinkedHashMap<String, Entry> virtual = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IncludeCache.Entry> eldest)
+        {
+            return size() > VIRTUAL_ENTRIES;
+        }
+    };
+    public        int                    hits;
+    public        int                    misses;
+
+    private IncludeCache()
+    {
+    }
+
+    /**
+     * @param encoding null for the platform default, if it's not the one the entry was read with it's read again
+     */
+    public synchronized Entry get(File file, String encoding) throws IOException
+    {
+        String key = file.getCanonicalPath();
+        long modified = file.lastModified();
+        long size = file.length();
+        Entry entry = entries.get(key);
+        if (entry != null && !Objects.equals(entry.encoding, encoding)) entry = null;
+        if (entry != null && entry.modified == modified && entry.size == size && System.currentTimeMillis() - modified > MTIME_RESOLUTION)
+        {
+            hits++;
+            return entry;
+        }
+        byte[] bytes = FileUtils.readFileToByteArray(file);
+        String hash = DigestUtils.sha1Hex(bytes);
+        if (entry != null && entry.hash.equals(hash) && entry.size == bytes.length)
+        {
+            hits++;
+            entry.modified = modified;
+            return entry;
+        }
+        misses++;
+        entry = new Entry(encoding == null ? new String(bytes) : new String(bytes, encoding), encoding, modified, bytes.length, hash);
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * For includes that are not files, see {@link CompileContext.Includes}. Only kept in memory, also the precompiled header.
+     */
+    public synchronized Entry get(String text)
+    {
+        String hash = DigestUtils.sha1Hex(text);
+        Entry entry = virtual.get(hash);
+        if (entry != null)
+        {
+            hits++;
+            return entry;
+        }
+        misses++;
+        entry = new Entry(text, null, -1, text.length(), hash);
+        virtual.put(hash, entry);
+        return entry;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        virtual.clear();
+    }
+
+    public static class Entry
+    {
+        /**
+         * With \n line endings
+         */
+        public final  String            text;
+        /**
+         * Trimmed, without comments, only the lines that aren't empty
+         */
+        public final  String[]          lines;
+        /**
+         * The line number (0 based) of each of the lines
+         */
+        public final  int[]             lineNumbers;
+        /**
+         * SHA-1 of the file, in hex
+         */
+        public final  String            hash;
+        /**
+         * Set by {@link PrecompiledHeader#get(Entry)}, NONE if the file is not a header
+         */
+        volatile      PrecompiledHeader header;
+        private final String            encoding;
+        /**
+         * Not a file
+         */
+        final         boolean           virtual;
+        private final long              size;
+        private       long              modified;
+
+        private Entry(String text, String encoding, long modified, long size, String hash)
+        {
+            this.text = text.replace("\r\n", "\n");
+            this.encoding = encoding;
+            this.virtual = modified == -1;
+            this.modified = modified;
+            this.size = size;
+            this.hash = hash;
+            String[] split = this.text.split("\\n");
+            ArrayList<String> lines = new ArrayList<>(split.length);
+            int[] lineNumbers = new int[split.length];
+            for (int i = 0; i < split.length; i++)
+            {
+                String line = split[i];
+                int comment = line.indexOf(PREFIX_COMMENT);
+                if (comment != -1) line = line.substring(0, comment);
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                lineNumbers[lines.size()] = i;
+                lines.add(line);
+            }
+            this.lines = lines.toArray(new String[lines.size()]);
+            this.lineNumbers = lines.size() == split.length ? lineNumbers : Arrays.copyOf(lineNumbers, lines.size());
+        }
+    }
+}
@@ -52,6 +52,10 @@ public class Instruction
     public static final EnumMap<Type, Instruction>       SIMPLE_INSTRUCTIONS       = new EnumMap<Type, Instruction>(Type.class);
     public static final EnumMap<Type, List<Instruction>> TYPE_INSTRUCTION_ENUM_MAP = new EnumMap<Type, List<Instruction>>(Type.class);
     public static final Instruction[]                    INSTRUCTIONS              = new Instruction[0x100];
+    /**
+     * Generic JMP label / CALL label, the possible encodings, shortest first. The Parser picks one by distance.
+     */
+    public static final EnumMap<Type, Instruction[]>     GENERIC_INSTRUCTIONS      = new EnumMap<Type, Instruction[]>(Type.class);
 
     static
     {
@@ -218,11 +222,15 @@ public class Instruction
         INSTRUCTIONS[opcode] = new Instruction(opcode++, 1, Type.MOV, Argument.AT_R1, Argument.A);                      //0xF7
         for (int i = 0; i < 8; i++)
             INSTRUCTIONS[opcode] = new Instruction(opcode++, 1, Type.MOV, Argument.R[i], Argument.A);                   //0xF8 -> 0xFF
+
+        GENERIC_INSTRUCTIONS.put(Type.JMP, new Instruction[]{INSTRUCTIONS[0x80], INSTRUCTIONS[0x01], INSTRUCTIONS[0x02]}); // SJMP, AJMP, LJMP
+        GENERIC_INSTRUCTIONS.put(Type.CALL, new Instruction[]{INSTRUCTIONS[0x11], INSTRUCTIONS[0x12]}); // ACALL, LCALL
     }
 
     public final Type       type;
     public final int        opcode;
     public final int        size;
+    public final int        cycles;
     public final Argument[] arguments;
     public final boolean    reverseOperands;
 
@@ -233,6 +241,7 @@ public class Instruction
         this.reverseOperands = reverseOperands;
         this.type = type;
         this.arguments = arguments;
+        this.cycles = getCycles(type, arguments);
         TYPE_INSTRUCTION_ENUM_MAP.get(type).add(this);
         if (arguments.length == 0) SIMPLE_INSTRUCTIONS.put(type, this);
     }
@@ -242,6 +251,54 @@ public class Instruction
         this(opcode, size, false, type, arguments);
     }
 
+    /**
+     * Machine cycles (12 clocks each on a standard 8051 core)
+     */
+    private static int getCycles(Type type, Argument... arguments)
+    {
+        switch (type)
+        {
+            case MUL:
+            case DIV:
+                return 4;
+            case AJMP:
+            case LJMP:
+            case SJMP:
+            case JMP:
+            case ACALL:
+            case LCALL:
+            case RET:
+            case RETI:
+            case JC:
+            case JNC:
+            case JZ:
+            case JNZ:
+            case JB:
+            case JNB:
+            case JBC:
+            case CJNE:
+            case DJNZ:
+            case MOVC:
+            case MOVX:
+            case PUSH:
+            case POP:
+                return 2;
+            case INC:
+                return arguments[0] == Argument.DPTR ? 2 : 1;
+            case ANL:
+            case ORL:
+            case XRL:
+                if (arguments[0] == Argument.C) return 2; // ANL / ORL C, bit (there is no XRL C)
+                return arguments[0] == Argument.DIRECT && arguments[1] == Argument.DATA ? 2 : 1;
+            case MOV:
+                if (arguments[0] == Argument.DPTR || arguments[0] == Argument.BIT) return 2;
+                if (arguments[0] == Argument.A || arguments[1] == Argument.A) return 1;
+                return arguments[0] == Argument.DIRECT || arguments[1] == Argument.DIRECT ? 2 : 1;
+            default:
+                return 1;
+        }
+    }
+
     @Override
     public String toString()
     {
@@ -303,7 +360,7 @@ public class Instruction
 
     public static enum Type
     {
-        ACALL, ADD, ADDC, AJMP, ANL, CJNE, CLR, CPL, DA, DEC, DIV, DJNZ, INC, JB, JBC, JC, JMP, JNB, JNC, JNZ, JZ, LCALL, LJMP, MOV, MOVC, MOVX, MUL, NOP, ORL, POP, PUSH, RET, RETI, RL, RLC, RR, RRC, SETB, SJMP, SUBB, SWAP, XCH, XCHD, XRL, Undefined;
+        ACALL, ADD, ADDC, AJMP, ANL, CALL, CJNE, CLR, CPL, DA, DEC, DIV, DJNZ, INC, JB, JBC, JC, JMP, JNB, JNC, JNZ, JZ, LCALL, LJMP, MOV, MOVC, MOVX, MUL, NOP, ORL, POP, PUSH, RET, RETI, RL, RLC, RR, RRC, SETB, SJMP, SUBB, SWAP, XCH, XCHD, XRL, Undefined;
 
         public Pattern pattern = Pattern.compile("(?:^|\\s+)" + this.name() + "(?:\\s+|$)", CASE_INSENSITIVE);
 
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.components.Symbol;
+import net.dries007.j8051.util.exceptions.CompileException;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Places the relocatable segments of object files around the absolute ones, resolves the externs and relocations
+ * and makes the final image.
+ * <p/>
+ * Relocatable segments go in the first gap they fit in, in the order the files are given.
+ *
+ * @author Dries007
+ */
+public class Linker
+{
+    public final List<ObjectFile>        objects;
+    public final LinkedList<Section>     sections = new LinkedList<>();
+    /**
+     * All public symbols, with their final values
+     */
+    public final HashMap<String, Symbol> symbols  = new HashMap<>();
+    /**
+     * Where the relocatable segment of each object file ended up
+     */
+    public final int[] bases;
+
+    public Linker(List<ObjectFile> objects)
+    {
+        this.objects = objects;
+        this.bases = new int[objects.size()];
+    }
+
+    public void link() throws CompileException
+    {
+        place();
+        HashMap<String, ObjectFile> owners = new HashMap<>();
+        for (int i = 0; i < objects.size(); i++)
+        {
+            for (ObjectFile.Definition definition : objects.get(i).definitions.values())
+            {
+                if (!definition.exported) continue;
+                String key = definition.key.toLowerCase();
+                if (owners.containsKey(key)) throw new CompileException(definition.key + " is public in " + owners.get(key).name + " and " + objects.get(i).name);
+                owners.put(key, objects.get(i));
+                symbols.put(key, new Symbol(-1, definition.key, definition.type, definition.relocatable ? bases[i] + definition.value : definition.value, null));
+            }
+        }
+        for (int i = 0; i < objects.size(); i++) relocate(objects.get(i), bases[i]);
+
+        TreeMap<Integer, int[]> image = new TreeMap<>();
+        for (int i = 0; i < objects.size(); i++)
+        {
+            for (ObjectFile.Segment segment : objects.get(i).segments)
+            {
+                if (segment.data.length != 0) image.put(segment.start == ObjectFile.RELOCATABLE ? bases[i] : segment.start, segment.data);
+            }
+        }
+        for (Map.Entry<Integer, int[]> entry : image.entrySet())
+        {
+            Section section = new Section(entry.getKey());
+            section.addData(entry.getValue());
+            sections.add(section);
+        }
+    }
+
+    /**
+     * First fit of the relocatable segments, in the gaps between the absolute ones.
+     */
+    private void place() throws CompileException
+    {
+        TreeMap<Integer, Integer> used = new TreeMap<>(); // start -> end (exclusive)
+        TreeMap<Integer, String> owner = new TreeMap<>();
+        for (ObjectFile object : objects)
+        {
+            for (ObjectFile.Segment segment : object.segments)
+            {
+                if (segment.start == ObjectFile.RELOCATABLE || segment.data.length == 0) continue;
+                int end = segment.start + segment.data.length;
+                Map.Entry<Integer, Integer> before = used.floorEntry(end - 1);
+                if (before != null && before.getValue() > segment.start) throw new CompileException(String.format("Section overlap! 0x%04X in %s and 0x%04X in %s", segment.start, object.name, before.getKey(), owner.get(before.getKey())));
+                used.put(segment.start, end);
+                owner.put(segment.start, object.name);
+            }
+        }
+        for (int i = 0; i < objects.size(); i++)
+        {
+            int size = objects.get(i).getSize();
+            if (size == 0) continue;
+            int address = 0;
+            for (Map.Entry<Integer, Integer> entry : used.entrySet())
+            {
+                if (entry.getKey() - address >= size) break;
+                address = Math.max(address, entry.getValue());
+            }
+            if (address + size > MapFile.FLASH_SIZE) throw new CompileException(String.format("%s (%d bytes) doesn't fit in the free space.", objects.get(i).name, size));
+            bases[i] = address;
+            used.put(address, address + size);
+            owner.put(address, objects.get(i).name);
+        }
+    }
+
+    private void relocate(ObjectFile object, int base) throws CompileException
+    {
+        HashMap<String, Symbol> scope = new HashMap<>();
+        for (String extern : object.externs)
+        {
+            if (!symbols.containsKey(extern)) throw new CompileException("Unresolved extern " + extern + " in " + object.name);
+            scope.put(extern, symbols.get(extern));
+        }
+        for (ObjectFile.Definition definition : object.definitions.values())
+        {
+            scope.put(definition.key.toLowerCase(), new Symbol(-1, definition.key, definition.type, definition.relocatable ? base + definition.value : definition.value, null));
+        }
+        Symbol location = new Symbol(-1, "$", Symbol.Type.LABEL, 0, null);
+        scope.put("$", location);
+        for (ObjectFile.Relocation relocation : object.relocations)
+        {
+            ObjectFile.Segment segment = object.segments.get(relocation.segment);
+            int address = (segment.start == ObjectFile.RELOCATABLE ? base : segment.start) + relocation.offset;
+            int[] data = segment.data;
+            int i = relocation.offset + relocation.field;
+            location.intValue = address;
+            int value;
+            Symbol symbol = scope.get(relocation.expression.toLowerCase());
+            if (symbol != null) value = symbol.intValue; // Just a name, most of them are
+            else try
+            {
+                value = relocation.kind.symbolType.evaluator.evaluate(relocation.expression, scope);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new CompileException(String.format("%s line %d: can't evaluate %s: %s", object.name, relocation.srcLine + 1, relocation.expression, e.getMessage()));
+            }
+            final int next = address + relocation.size;
+            switch (relocation.kind)
+            {
+                case ADDR11:
+                    if ((next & 0xF800) != (value & 0xF800)) throw new CompileException(String.format("%s line %d: %s is out of range.", object.name, relocation.srcLine + 1, relocation.expression));
+                    data[relocation.offset] = (data[relocation.offset] & 0x1F) | ((value & 0x700) >>> 3);
+                    data[i] = value & 0xFF;
+                    break;
+                case REL:
+                    value -= next;
+                    if (value > 127 || value < -128) throw new CompileException(String.format("%s line %d: %s is out of range.", object.name, relocation.srcLine + 1, relocation.expression));
+                    data[i] = value & 0xFF;
+                    break;
+                default:
+                    for (int j = 0; j < relocation.kind.bytesAdded; j++) data[i + j] = (value >>> ((relocation.kind.bytesAdded - 1 - j) * 8)) & 0xFF;
+            }
+        }
+    }
+
+    public void writeHexFile(CompileContext context) throws IOException, CompileException
+    {
+        LinkedList<String> lines = new LinkedList<>();
+        for (Section section : sections) section.addToHexFile(lines);
+        lines.add(":00000001FF");
+        context.writeLines(".hex", lines);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.compiler.components.Symbol;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Where everything ended up: sections, free space, the size of every label and the DATA and BIT symbols.
+ * <p/>
+ * The size of a label is the amount of bytes from its address up to the next label or the end of its section.
+ * The text format is for people, the machine format has one "name TYPE address size" line per entry, with TYPE one of
+ * SECTION, FREE, LABEL, DATA or BIT. Disassembler.loadSymbols can read it.
+ *
+ * @author Dries007
+ */
+public class MapFile
+{
+    /**
+     * XC888-8FF, 32 KB
+     */
+    public static final int FLASH_SIZE = 0x8000;
+
+    private final ArrayList<int[]>    sections = new ArrayList<>(); // start, size
+    private final ArrayList<int[]>    gaps     = new ArrayList<>(); // start, size
+    private final ArrayList<Object[]> labels   = new ArrayList<>(); // name, address, size
+    private final ArrayList<Symbol>   data     = new ArrayList<>();
+    private final ArrayList<Symbol>   bits     = new ArrayList<>();
+    private       int                 used;
+
+    public MapFile(List<Section> sectionList, List<Component> components, Map<String, Symbol> symbols)
+    {
+        for (Section section : sectionList)
+        {
+            if (section.getSize() == 0) continue;
+            sections.add(new int[]{section.startaddress, section.getSize()});
+            used += section.getSize();
+        }
+        int free = 0;
+        for (int[] section : sections)
+        {
+            if (section[0] > free) gaps.add(new int[]{free, section[0] - free});
+            free = Math.max(free, section[0] + section[1]);
+        }
+        if (free < FLASH_SIZE) gaps.add(new int[]{free, FLASH_SIZE - free});
+
+        BitSet bytes = new BitSet(0x10000);
+        for (Component component : components) if (component.getData() != null) bytes.set(component.address, component.address + component.getData().length);
+
+        ArrayList<Symbol> sorted = new ArrayList<>();
+        for (Symbol symbol : symbols.values())
+        {
+            if (!symbol.isDefined()) continue;
+            if (symbol.type == Symbol.Type.LABEL) sorted.add(symbol);
+            else if (symbol.type == Symbol.Type.DATA) data.add(symbol);
+            else if (symbol.type == Symbol.Type.BIT) bits.add(symbol);
+        }
+        Comparator<Symbol> byValue = new Comparator<Symbol>()
+        {
+            @Override
+            public int compare(Symbol o1, Symbol o2)
+            {
+                int i = Integer.compare(o1.intValue, o2.intValue);
+                return i != 0 ? i : o1.key.compareTo(o2.key);
+            }
+        };
+        Collections.sort(sorted, byValue);
+        Collections.sort(data, byValue);
+        Collections.sort(bits, byValue);
+
+        int s = 0;
+        for (int i = 0; i < sorted.size(); i++)
+        {
+            int address = sorted.get(i).intValue;
+            int end = 0x10000;
+            for (int j = i + 1; j < sorted.size(); j++)
+            {
+                if (sorted.get(j).intValue == address) continue;
+                end = sorted.get(j).intValue;
+                break;
+            }
+            while (s < sections.size() && sections.get(s)[0] + sections.get(s)[1] <= address) s++;
+            if (s < sections.size() && sections.get(s)[0] <= address) end = Math.min(end, sections.get(s)[0] + sections.get(s)[1]);
+            else end = address;
+            int size = address >= end ? 0 : bytes.get(address, end).cardinality();
+            labels.add(new Object[]{sorted.get(i).key, address, size});
+        }
+    }
+
+    public void appendText(Appendable out) throws IOException
+    {
+        out.append(String.format("Used %d of %d bytes of flash (%.1f%%), %d free%n%n", used, FLASH_SIZE, 100.0 * used / FLASH_SIZE, Math.max(0, FLASH_SIZE - used)));
+        out.append(String.format("Sections%n  Start   End     Size%n"));
+        for (int[] section : sections) out.append(String.format("  0x%04X  0x%04X  %d%n", section[0], section[0] + section[1] - 1, section[1]));
+        out.append(String.format("%nFree%n  Start   End     Size%n"));
+        for (int[] gap : gaps) out.append(String.format("  0x%04X  0x%04X  %d%n", gap[0], gap[0] + gap[1] - 1, gap[1]));
+
+        out.append(String.format("%nLabels%n  Start   End     Size    Name%n"));
+        for (Object[] label : labels)
+        {
+            int address = (Integer) label[1], size = (Integer) label[2];
+            out.append(String.format("  0x%04X  0x%04X  %-6d  %s%n", address, address + Math.max(size, 1) - 1, size, label[0]));
+        }
+
+        ArrayList<Object[]> largest = new ArrayList<>(labels);
+        Collections.sort(largest, new Comparator<Object[]>()
+        {
+            @Override
+            public int compare(Object[] o1, Object[] o2)
+            {
+                return Integer.compare((Integer) o2[2], (Integer) o1[2]);
+            }
+        });
+        out.append(String.format("%nLargest labels%n  Size    Name%n"));
+        for (int i = 0; i < largest.size() && i < 10; i++) out.append(String.format("  %-6d  %s%n", largest.get(i)[2], largest.get(i)[0]));
+
+        out.append(String.format("%nDATA%n  Address  Name%n"));
+        for (Symbol symbol : data) out.append(String.format("  0x%02X     %s%s%n", symbol.intValue, symbol.key, symbol.intValue >= 0x80 ? " (SFR)" : ""));
+        out.append(String.format("%nBIT%n  Address  Name%n"));
+        for (Symbol symbol : bits) out.append(String.format("  0x%02X     %s%n", symbol.intValue, symbol.key));
+    }
+
+    public void appendMachine(Appendable out) throws IOException
+    {
+        out.append("; name TYPE address size\n");
+        for (int i = 0; i < sections.size(); i++) out.append(String.format("section%d SECTION 0x%04X %d%n", i, sections.get(i)[0], sections.get(i)[1]));
+        for (int i = 0; i < gaps.size(); i++) out.append(String.format("free%d FREE 0x%04X %d%n", i, gaps.get(i)[0], gaps.get(i)[1]));
+        for (Object[] label : labels) out.append(String.format("%s LABEL 0x%04X %d%n", label[0], label[1], label[2]));
+        for (Symbol symbol : data) out.append(String.format("%s DATA 0x%02X 1%n", symbol.key, symbol.intValue));
+        for (Symbol symbol : bits) out.append(String.format("%s BIT 0x%02X 1%n", symbol.key, symbol.intValue));
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.components.Bytes;
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.compiler.components.InstructionComponent;
+import net.dries007.j8051.compiler.components.Symbol;
+import net.dries007.j8051.util.exceptions.CompileException;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A relocatable module, the output of a compile in object mode and the input of the {@link Linker}.
+ * <p/>
+ * Code before the first ORG is the relocatable segment (always segments[0]), assembled from address 0. ORG sections
+ * stay absolute. Every field that depends on where the relocatable segment ends up (an address of one of its labels,
+ * $, an #extern, or any REL / ADDR11 field in the relocatable segment itself) gets a placeholder and a relocation with
+ * the original expression. The linker evaluates that
+ * expression once all addresses are known and encodes it the way {@link InstructionComponent} would.
+ *
+ * @author Dries007
+ */
+public class ObjectFile
+{
+    public static final  int RELOCATABLE = -1;
+    private static final int MAGIC       = 0x4A384F42; // J8OB
+    private static final int VERSION     = 2;
+
+    public final String                            name;
+    public final ArrayList<Segment>                segments    = new ArrayList<>();
+    public final ArrayList<Relocation>             relocations = new ArrayList<>();
+    /**
+     * Exports and the local symbols used by relocations, by lowercase name
+     */
+    public final LinkedHashMap<String, Definition> definitions = new LinkedHashMap<>();
+    public final LinkedHashSet<String>             externs     = new LinkedHashSet<>();
+    private final HashSet<String> relocatable = new HashSet<>();
+
+    private ObjectFile(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Put placeholders in all fields that need relocating. Must be done after the branches are relaxed (so the sizes
+     * are final) and before everything is resolved.
+     */
+    public ObjectFile(String name, List<Component> components, Map<String, Symbol> symbols, Set<String> externs) throws CompileException
+    {
+        this(name);
+        this.externs.addAll(externs);
+        for (Component component : components)
+        {
+            if (!(component instanceof Symbol)) continue;
+            if (((Symbol) component).type == Symbol.Type.ORG || ((Symbol) component).type == Symbol.Type.END) break;
+            if (((Symbol) component).type == Symbol.Type.LABEL) relocatable.add(((Symbol) component).key.toLowerCase());
+        }
+        boolean moves = true; // Still in the relocatable segment
+        for (Component component : components)
+        {
+            if (component instanceof Symbol && (((Symbol) component).type == Symbol.Type.ORG || ((Symbol) component).type == Symbol.Type.END)) moves = false;
+            if (component instanceof InstructionComponent)
+            {
+                InstructionComponent instruction = (InstructionComponent) component;
+                if (instruction.instruction == null || instruction.getArguments() == null) continue;
+                int field = 1;
+                for (int i = 0; i < instruction.instruction.arguments.length; i++)
+                {
+                    Instruction.Argument argument = instruction.instruction.arguments[i];
+                    if (argument.bytesAdded == 0) continue;
+                    Object value = instruction.getArgument(i);
+                    // The distance (REL) or the 2K page (ADDR11) changes with the instruction, whatever the target is
+                    boolean relative = moves && (argument == Instruction.Argument.REL || argument == Instruction.Argument.ADDR11);
+                    if ((value instanceof String && isRelocated((String) value)) || (relative && value != null))
+                    {
+                        int position = field;
+                        if (instruction.instruction.reverseOperands) position = 3 - position; // Because of 0x85
+                        relocations.add(new Relocation(component, position, instruction.instruction.size, argument, value.toString()));
+                        instruction.setArgument(i, 0);
+                    }
+                    field += argument.bytesAdded;
+                }
+            }
+            else if (component instanceof Bytes)
+            {
+                Bytes bytes = (Bytes) component;
+                for (int i = 0; i < bytes.objects.length; i++)
+                {
+                    if (!(bytes.objects[i] instanceof String) || !isRelocated((String) bytes.objects[i])) continue;
+                    switch (bytes.type)
+                    {
+                        case DB:
+                            relocations.add(new Relocation(component, i, 0, Instruction.Argument.DATA, (String) bytes.objects[i]));
+                            break;
+                        case DW:
+                            relocations.add(new Relocation(component, 2 * i, 0, Instruction.Argument.DATA16, (String) bytes.objects[i]));
+                            break;
+                        default:
+                            throw new CompileException(component, "The size of a DS can't be relocated: " + bytes.objects[i]);
+                    }
+                    bytes.objects[i] = "0";
+                }
+            }
+        }
+        for (Relocation relocation : relocations)
+        {
+            for (String word : relocation.expression.split("\\W+"))
+            {
+                Symbol symbol = symbols.get(word.toLowerCase());
+                if (symbol != null && !this.externs.contains(word.toLowerCase()) && symbol.type != Symbol.Type.LABEL && symbol.isDefined()) define(symbol, false);
+            }
+        }
+    }
+
+    private boolean isRelocated(String expression)
+    {
+        if (expression.indexOf('$') != -1) return true;
+        for (String word : expression.split("\\W+")) if (relocatable.contains(word.toLowerCase()) || externs.contains(word.toLowerCase())) return true;
+        return false;
+    }
+
+    private void define(Symbol symbol, boolean exported)
+    {
+        definitions.put(symbol.key.toLowerCase(), new Definition(symbol.key, symbol.type, symbol.intValue, relocatable.contains(symbol.key.toLowerCase()), exported));
+    }
+
+    /**
+     * Collect the data of the now resolved components, and where the relocations are.
+     */
+    public void build(List<Component> components, Map<String, Symbol> symbols, Set<String> exports) throws CompileException
+    {
+        ArrayList<ArrayList<Integer>> data = new ArrayList<>();
+        segments.add(new Segment(RELOCATABLE, null));
+        data.add(new ArrayList<Integer>());
+        int current = 0;
+        int next = 0;
+        for (Component component : components)
+        {
+            if (component instanceof Symbol)
+            {
+                Symbol.Type type = ((Symbol) component).type;
+                if (type == Symbol.Type.ORG)
+                {
+                    current = segments.size();
+                    segments.add(new Segment(((Symbol) component).intValue, null));
+                    data.add(new ArrayList<Integer>());
+                }
+                else if (type == Symbol.Type.END) current = -1;
+            }
+            if (component.getData() == null) continue;
+            if (current == -1) throw new CompileException(component, "Component doesn't belong to a code section.");
+            Segment segment = segments.get(current);
+            int offset = segment.start == RELOCATABLE ? component.address : component.address - segment.start;
+            for (; next < relocations.size() && relocations.get(next).component == component; next++)
+            {
+                Relocation relocation = relocations.get(next);
+                relocation.segment = current;
+                relocation.offset = offset;
+                relocation.component = null;
+            }
+            for (int b : component.getData()) data.get(current).add(b);
+        }
+        if (next != relocations.size()) throw new CompileException(relocations.get(next).component, "Relocated component has no data");
+        for (int i = 0; i < segments.size(); i++)
+        {
+            int[] bytes = new int[data.get(i).size()];
+            for (int j = 0; j < bytes.length; j++) bytes[j] = data.get(i).get(j);
+            segments.set(i, new Segment(segments.get(i).start, bytes));
+        }
+        for (String name : exports)
+        {
+            Symbol symbol = symbols.get(name);
+            if (symbol == null || !symbol.isDefined() || externs.contains(name)) throw new CompileException("Public symbol " + name + " is not defined in this file.");
+            define(symbol, true);
+        }
+        for (Relocation relocation : relocations)
+        {
+            for (String word : relocation.expression.split("\\W+"))
+            {
+                Symbol symbol = symbols.get(word.toLowerCase());
+                if (symbol != null && symbol.type == Symbol.Type.LABEL && !definitions.containsKey(word.toLowerCase())) define(symbol, false);
+            }
+        }
+    }
+
+    public static ObjectFile read(File file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC) throw new IOException(file + " is not an object file.");
+            if (in.readInt() != VERSION) throw new IOException(file + " is made by a different version, compile it again.");
+            ObjectFile object = new ObjectFile(in.readUTF());
+            for (int i = in.readInt(); i > 0; i--)
+            {
+                int start = in.readInt();
+                int[] data = new int[in.readInt()];
+                for (int j = 0; j < data.length; j++) data[j] = in.readUnsignedByte();
+                object.segments.add(new Segment(start, data));
+            }
+            for (int i = in.readInt(); i > 0; i--)
+            {
+                Relocation relocation = new Relocation(null, in.readUnsignedShort(), in.readUnsignedByte(), Instruction.Argument.values()[in.readUnsignedByte()], null);
+                relocation.segment = in.readInt();
+                relocation.offset = in.readInt();
+                relocation.srcLine = in.readInt();
+                relocation.expression = in.readUTF();
+                object.relocations.add(relocation);
+            }
+            for (int i = in.readInt(); i > 0; i--)
+            {
+                Definition definition = new Definition(in.readUTF(), Symbol.Type.values()[in.readUnsignedByte()], in.readInt(), in.readBoolean(), in.readBoolean());
+                object.definitions.put(definition.key.toLowerCase(), definition);
+            }
+            for (int i = in.readInt(); i > 0; i--) object.externs.add(in.readUTF());
+            return object;
+        }
+    }
+
+    /**
+     * Doesn't close the stream
+     */
+    public void write(OutputStream stream) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(name);
+        out.writeInt(segments.size());
+        for (Segment segment : segments)
+        {
+            out.writeInt(segment.start);
+            out.writeInt(segment.data.length);
+            for (int b : segment.data) out.writeByte(b);
+        }
+        out.writeInt(relocations.size());
+        for (Relocation relocation : relocations)
+        {
+            out.writeShort(relocation.field);
+            out.writeByte(relocation.size);
+            out.writeByte(relocation.kind.ordinal());
+            out.writeInt(relocation.segment);
+            out.writeInt(relocation.offset);
+            out.writeInt(relocation.srcLine);
+            out.writeUTF(relocation.expression);
+        }
+        out.writeInt(definitions.size());
+        for (Definition definition : definitions.values())
+        {
+            out.writeUTF(definition.key);
+            out.writeByte(definition.type.ordinal());
+            out.writeInt(definition.value);
+            out.writeBoolean(definition.relocatable);
+            out.writeBoolean(definition.exported);
+        }
+        out.writeInt(externs.size());
+        for (String extern : externs) out.writeUTF(extern);
+        out.flush();
+    }
+
+    /**
+     * @return the size of the relocatable segment
+     */
+    public int getSize()
+    {
+        return segments.get(0).data.length;
+    }
+
+    public static class Segment
+    {
+        /**
+         * RELOCATABLE or the ORG
+         */
+        public final int   start;
+        public final int[] data;
+
+        public Segment(int start, int[] data)
+        {
+            this.start = start;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A field that gets the value of an expression, encoded as the argument type.
+     */
+    public static class Relocation
+    {
+        /**
+         * Byte index of the field in the component, and the size of the instruction (0 for DB / DW)
+         */
+        public final int                  field, size;
+        public final Instruction.Argument kind;
+        public       String               expression;
+        public       int                  segment, offset, srcLine;
+        private      Component            component;
+
+        private Relocation(Component component, int field, int size, Instruction.Argument kind, String expression)
+        {
+            this.component = component;
+            this.field = field;
+            this.size = size;
+            this.kind = kind;
+            this.expression = expression;
+            if (component != null) srcLine = component.getSrcLine();
+        }
+    }
+
+    public static class Definition
+    {
+        public final String      key;
+        public final Symbol.Type type;
+        public final int         value;
+        /**
+         * If true, value is an offset in the relocatable segment
+         */
+        public final boolean     relocatable, exported;
+
+        public Definition(String key, Symbol.Type type, int value, boolean relocatable, boolean exported)
+        {
+            this.key = key;
+            this.type = type;
+            this.value = value;
+            this.relocatable = relocatable;
+            this.exported = exported;
+        }
+    }
+}
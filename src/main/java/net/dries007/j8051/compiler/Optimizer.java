@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.Instruction.Argument;
+import net.dries007.j8051.compiler.Instruction.Type;
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.compiler.components.InstructionComponent;
+import net.dries007.j8051.compiler.components.Symbol;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Peephole optimizer. Runs on the instructions after they are matched, but before any address is assigned.
+ * <p/>
+ * Only instructions that directly follow each other are combined, a label in between means the second one can be jumped to.
+ * Every rule removes one instruction. Passes repeat until nothing changes.
+ *
+ * @author Dries007
+ */
+public class Optimizer
+{
+    private static final Rule[] RULES = {
+            // MOV A, x / MOV x, A -> MOV A, x
+            // MOV x, A / MOV A, x -> MOV x, A
+            // Only for registers and RAM below 80h, SFR accesses can have side effects
+            new Rule("Redundant MOV")
+            {
+                @Override
+                int apply(List<Component> list, int i)
+                {
+                    InstructionComponent first = getInstruction(list, i);
+                    InstructionComponent second = getInstruction(list, i + 1);
+                    if (first == null || second == null || first.instruction.type != Type.MOV || second.instruction.type != Type.MOV) return -1;
+                    Argument[] a = first.instruction.arguments;
+                    Argument[] b = second.instruction.arguments;
+                    if (a[0] == Argument.A && b[1] == Argument.A && a[1] == b[0] && isRam(first, 1) && sameValue(first.getArgument(1), second.getArgument(0))) return i + 1;
+                    if (a[1] == Argument.A && b[0] == Argument.A && a[0] == b[1] && isRam(first, 0) && sameValue(first.getArgument(0), second.getArgument(1))) return i + 1;
+                    return -1;
+                }
+            },
+            // SJMP / AJMP / LJMP / JMP to the next instruction
+            new Rule("Jump to next")
+            {
+                @Override
+                int apply(List<Component> list, int i)
+                {
+                    InstructionComponent jump = getInstruction(list, i);
+                    if (jump == null) return -1;
+                    Type type = jump.instruction.type;
+                    if (type != Type.SJMP && type != Type.AJMP && type != Type.LJMP) return -1;
+                    Object target = jump.getArgument(0);
+                    if (!(target instanceof String)) return -1;
+                    for (int j = i + 1; j < list.size(); j++)
+                    {
+                        Component next = list.get(j);
+                        if (!(next instanceof Symbol) || ((Symbol) next).type != Symbol.Type.LABEL) return -1;
+                        if (((Symbol) next).key.equalsIgnoreCase((String) target)) return i;
+                    }
+                    return -1;
+                }
+            },
+            // CLR A / ADD A, x -> MOV A, x
+            // ADD also clears CY, AC and OV here, so only if nothing reads them before they are overwritten.
+            new Rule("CLR A, ADD")
+            {
+                @Override
+                int apply(List<Component> list, int i)
+                {
+                    InstructionComponent clear = getInstruction(list, i);
+                    InstructionComponent add = getInstruction(list, i + 1);
+                    if (clear == null || add == null || clear.instruction.type != Type.CLR || clear.instruction.arguments[0] != Argument.A) return -1;
+                    if (add.instruction.type != Type.ADD || !flagsDead(list, i + 2)) return -1;
+                    for (Instruction mov : Type.MOV.getInstructions())
+                    {
+                        if (mov.arguments[0] == Argument.A && mov.arguments[1] == add.instruction.arguments[1])
+                        {
+                            add.instruction = mov;
+                            return i;
+                        }
+                    }
+                    return -1;
+                }
+            },
+    };
+
+    private Optimizer()
+    {
+    }
+
+    /**
+     * @return Pass, Line, Rule, Bytes saved, Cycles saved. One row per removed instruction.
+     */
+    public static List<Object[]> optimize(LinkedList<Component> components)
+    {
+        ArrayList<Component> list = new ArrayList<>(components);
+        ArrayList<Object[]> report = new ArrayList<>();
+        int pass = 0;
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            pass++;
+            for (int i = 0; i < list.size(); i++)
+            {
+                for (Rule rule : RULES)
+                {
+                    int remove = rule.apply(list, i);
+                    if (remove == -1) continue;
+                    InstructionComponent removed = (InstructionComponent) list.remove(remove);
+                    Instruction instruction = removed.candidates == null ? removed.instruction : removed.candidates[0];
+                    report.add(new Object[]{pass, removed.getSrcLine(), rule.name, instruction.size, instruction.cycles});
+                    changed = true;
+                    i = Math.max(i - 2, -1); // Removing can make a new pair with the one before
+                    break;
+                }
+            }
+        }
+        components.clear();
+        components.addAll(list);
+        return report;
+    }
+
+    private static InstructionComponent getInstruction(List<Component> list, int i)
+    {
+        if (i >= list.size() || !(list.get(i) instanceof InstructionComponent)) return null;
+        InstructionComponent component = (InstructionComponent) list.get(i);
+        return component.instruction == null ? null : component;
+    }
+
+    /**
+     * Registers, @Ri and direct addresses below 0x80
+     */
+    private static boolean isRam(InstructionComponent component, int argument)
+    {
+        if (component.instruction.arguments[argument] != Argument.DIRECT) return component.instruction.arguments[argument].string != null;
+        Object value = component.getArgument(argument);
+        return value instanceof Integer && (Integer) value < 0x80;
+    }
+
+    private static boolean sameValue(Object a, Object b)
+    {
+        if (a instanceof String && b instanceof String) return ((String) a).equalsIgnoreCase((String) b);
+        return a.equals(b);
+    }
+
+    /**
+     * Straight line look ahead: true if CY, AC and OV all get overwritten before anything can read them.
+     * Stops (false) at labels, jumps, anything that reads the flags or touches the PSW directly, and anything not in the list.
+     */
+    private static boolean flagsDead(List<Component> list, int i)
+    {
+        for (; i < list.size(); i++)
+        {
+            InstructionComponent component = getInstruction(list, i);
+            if (component == null) return false;
+            Instruction instruction = component.instruction;
+            for (int j = 0; j < instruction.arguments.length; j++)
+            {
+                Argument argument = instruction.arguments[j];
+                if (argument == Argument.C) return false;
+                if ((argument == Argument.DIRECT || argument == Argument.BIT) && !(component.getArgument(j) instanceof Integer)) return false;
+                if (argument == Argument.DIRECT && (Integer) component.getArgument(j) == 0xD0) return false;
+                if (argument == Argument.BIT && ((Integer) component.getArgument(j) & 0xF8) == 0xD0) return false;
+            }
+            switch (instruction.type)
+            {
+                case ADD:
+                    return true;
+                case MOV:
+                case MOVX:
+                case MOVC:
+                case INC:
+                case DEC:
+                case CLR:
+                case CPL:
+                case SWAP:
+                case XCH:
+                case ANL:
+                case ORL:
+                case XRL:
+                case NOP:
+                    continue;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    private static abstract class Rule
+    {
+        final String name;
+
+        Rule(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @return the index of the component to remove, or -1 if the rule doesn't apply at i
+         */
+        abstract int apply(List<Component> list, int i);
+    }
+}
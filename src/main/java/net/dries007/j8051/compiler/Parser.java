@@ -31,19 +31,15 @@
 
 package net.dries007.j8051.compiler;
 
-import net.dries007.j8051.Main;
 import net.dries007.j8051.compiler.components.*;
+import net.dries007.j8051.util.IntegerEvaluator;
 import net.dries007.j8051.util.exceptions.CompileException;
 import net.dries007.j8051.util.exceptions.SymbolUndefinedException;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 
-import static net.dries007.j8051.util.Constants.*;
-
 /**
  * @author Dries007
  */
@@ -54,14 +50,40 @@ public class Parser
     public final LinkedList<Section>           sections        = new LinkedList<>();
     public final HashMap<String, Symbol>       symbols         = new HashMap<>();
     public final LinkedHashMap<String, String> includeFiles    = new LinkedHashMap<>();
+    /**
+     * Every include as written (&lt;name&gt; or "name") with the SHA-1 of its contents, in the order they were read
+     */
+    public final LinkedHashMap<String, String> includeHashes   = new LinkedHashMap<>();
+    public final ArrayList<Object[]>           optimizations   = new ArrayList<>();
+    public final ArrayList<Object[]>           stripped        = new ArrayList<>();
+    public final HashSet<String>               keep            = new HashSet<>();
+    public final LinkedHashSet<String>         externs         = new LinkedHashSet<>();
+    public final LinkedHashSet<String>         exports         = new LinkedHashSet<>();
+    public       boolean                       optimize;
+    public       boolean                       strip;
+    /**
+     * Make an object file for the {@link Linker} instead of a hex file
+     */
+    public       boolean                       relocatable;
+    public       ObjectFile                    objectFile;
+    public final CompileContext                context;
     public final String src;
     public       String postPre;
 
     private Stage stage = Stage.INIT;
 
+    /**
+     * With the settings of the IDE / command line, see {@link CompileContext#getDefault()}
+     */
     public Parser(String src)
+    {
+        this(src, CompileContext.getDefault());
+    }
+
+    public Parser(String src, CompileContext context)
     {
         this.src = src.replaceAll("\\r\\n", "\n");
+        this.context = context;
     }
 
     public boolean hasWork()
@@ -112,6 +134,145 @@ public class Parser
         return resolvedAny;
     }
 
+    /**
+     * Pick the shortest encoding for every generic JMP / CALL.
+     * All of them start out short, every round grows the ones that can't reach their target.
+     * Sizes only ever grow, so this always ends. Addresses are only recalculated from the first component that grew.
+     * If the layout can't be calculated yet (unresolved sizes or ORGs), the long forms are used, they always fit.
+     */
+    private void relaxBranches()
+    {
+        final Component[] list = components.toArray(new Component[components.size()]);
+        final int[] sizes = new int[list.length];
+        final int[] addresses = new int[list.length];
+        final ArrayList<Integer> branches = new ArrayList<>();
+        boolean fixed = true;
+        for (int i = 0; i < list.length; i++)
+        {
+            Component component = list[i];
+            if (component instanceof InstructionComponent && ((InstructionComponent) component).instruction == null) return; // resolveAll will report it
+            if (component instanceof InstructionComponent && ((InstructionComponent) component).candidates != null) branches.add(i);
+            if (component instanceof SrcComponent || (component instanceof Symbol && ((Symbol) component).type == Symbol.Type.ORG && !((Symbol) component).isDefined()))
+            {
+                fixed = false;
+                continue;
+            }
+            try
+            {
+                sizes[i] = component.getSize(symbols);
+            }
+            catch (SymbolUndefinedException e)
+            {
+                fixed = false;
+            }
+        }
+        if (branches.isEmpty()) return;
+        // In an object file only distances within the relocatable segment, or within the absolute ones, stay the same
+        final HashSet<String> moving = new HashSet<>();
+        int firstOrg = list.length;
+        if (relocatable)
+        {
+            for (int i = 0; i < list.length && firstOrg == list.length; i++)
+            {
+                if (!(list[i] instanceof Symbol)) continue;
+                Symbol symbol = (Symbol) list[i];
+                if (symbol.type == Symbol.Type.ORG || symbol.type == Symbol.Type.END) firstOrg = i;
+                else if (symbol.type == Symbol.Type.LABEL) moving.add(symbol.key.toLowerCase());
+            }
+        }
+        if (!fixed)
+        {
+            for (int i : branches)
+            {
+                InstructionComponent branch = (InstructionComponent) list[i];
+                branch.instruction = branch.candidates[branch.candidates.length - 1];
+            }
+            return;
+        }
+
+        int from = 0;
+        while (from != -1)
+        {
+            // Lay out everything from the first change on, and update the labels there
+            int location = from == 0 ? 0 : addresses[from - 1] + sizes[from - 1];
+            for (int i = from; i < list.length; i++)
+            {
+                if (list[i] instanceof Symbol)
+                {
+                    Symbol symbol = (Symbol) list[i];
+                    if (symbol.type == Symbol.Type.ORG) location = symbol.intValue;
+                    else if (symbol.type == Symbol.Type.LABEL) symbol.intValue = location;
+                }
+                addresses[i] = location;
+                location += sizes[i];
+            }
+
+            from = -1;
+            for (int i : branches)
+            {
+                InstructionComponent branch = (InstructionComponent) list[i];
+                Instruction best = branch.candidates[branch.candidates.length - 1];
+                try
+                {
+                    currentLocation.intValue = addresses[i];
+                    int target = IntegerEvaluator.EVALUATOR.evaluate(branch.getTarget(), symbols);
+                    boolean sameSide = !relocatable || isSameSide(branch.getTarget(), moving, i < firstOrg);
+                    for (Instruction candidate : branch.candidates)
+                    {
+                        if (candidate.size < branch.instruction.size) continue; // Never shrink
+                        if (relocatable && candidate.arguments[0] == Instruction.Argument.ADDR11) continue; // The 2K page is only known after linking
+                        if (!sameSide && candidate.arguments[0] == Instruction.Argument.REL) continue; // The distance is only known after linking
+                        if (fits(candidate, addresses[i], target))
+                        {
+                            best = candidate;
+                            break;
+                        }
+                    }
+                }
+                catch (NumberFormatException e)
+                {
+                    // Undefined or unknown symbol, RESOLVE_ALL will complain if it stays that way
+                }
+                if (best.size > branch.instruction.size)
+                {
+                    sizes[i] = best.size;
+                    if (from == -1) from = i;
+                }
+                branch.instruction = best;
+            }
+            currentLocation.intValue = null;
+        }
+    }
+
+    /**
+     * @return false if the distance to the target is only known after linking: the branch is in the relocatable
+     * segment and the target isn't (or the other way around), or the target is an #extern
+     */
+    private boolean isSameSide(String target, Set<String> moving, boolean inRelocatable)
+    {
+        boolean moves = inRelocatable && target.indexOf('$') != -1;
+        for (String word : target.split("\\W+"))
+        {
+            if (externs.contains(word.toLowerCase())) return false;
+            if (moving.contains(word.toLowerCase())) moves = true;
+        }
+        return moves == inRelocatable;
+    }
+
+    private static boolean fits(Instruction instruction, int address, int target)
+    {
+        final int next = address + instruction.size;
+        switch (instruction.arguments[0])
+        {
+            case REL:
+                return target - next >= -128 && target - next <= 127;
+            case ADDR11:
+                return (next & 0xF800) == (target & 0xF800);
+            default:
+                return true;
+        }
+    }
+
     public Object[][] getComponents()
     {
         ArrayList<Object[]> data = new ArrayList<>(components.size());
@@ -119,6 +280,22 @@ public class Parser
         return data.toArray(new Object[data.size()][]);
     }
 
+    /**
+     * @return Line, Label, Bytes of every block removed by the dead code stripping
+     */
+    public Object[][] getStripped()
+    {
+        return stripped.toArray(new Object[stripped.size()][]);
+    }
+
+    /**
+     * @return Pass, Line, Rule, Bytes saved, Cycles saved
+     */
+    public Object[][] getOptimizations()
+    {
+        return optimizations.toArray(new Object[optimizations.size()][]);
+    }
+
     public Object[][] getSymbols()
     {
         ArrayList<Object[]> data = new ArrayList<>(symbols.size());
@@ -130,6 +307,30 @@ public class Parser
         return data.toArray(new Object[data.size()][]);
     }
 
+    /**
+     * @return the address of the first byte generated by a line of the main file, or -1 if it generates none
+     */
+    public int getAddress(int srcLine)
+    {
+        for (Component component : components)
+        {
+            if (!component.isIncluded() && component.getSrcLine() == srcLine && component.getData() != null && component.getData().length != 0) return component.address;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the line of the main file that generated the byte at address, or -1 if none did or it came from an include file
+     */
+    public int getSrcLine(int address)
+    {
+        for (Component component : components)
+        {
+            if (component.getData() != null && address >= component.address && address < component.address + component.getData().length) return component.isIncluded() ? -1 : component.getSrcLine();
+        }
+        return -1;
+    }
+
     public Object[][] getHexTable()
     {
         LinkedList<String[]> data = new LinkedList<>();
@@ -139,12 +340,29 @@ public class Parser
 
     private void makeHexFile() throws IOException, CompileException
     {
-        File file = new File(Main.srcFile.getParentFile(), FilenameUtils.getBaseName(Main.srcFile.getName()) + ".hex");
-        if (file.exists()) file.delete();
         LinkedList<String> lines = new LinkedList<>();
         for (Section section : sections) section.addToHexFile(lines);
         lines.add(":00000001FF");
-        FileUtils.writeLines(file, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT), lines);
+        context.writeLines(".hex", lines);
+    }
+
+    private void writeObjectFile() throws IOException
+    {
+        try (OutputStream out = context.output.open(context.name + ".obj"))
+        {
+            objectFile.write(out);
+        }
+    }
+
+    private void makeMapFile() throws IOException
+    {
+        MapFile map = new MapFile(sections, components, symbols);
+        StringBuilder text = new StringBuilder();
+        map.appendText(text);
+        context.writeString(".map", text.toString());
+        StringBuilder machine = new StringBuilder();
+        map.appendMachine(machine);
+        context.writeString(".sym", machine.toString());
     }
 
     public Stage getStage()
@@ -166,6 +384,13 @@ public class Parser
                     @Override
                     public void work(Parser parser) throws Exception
                     {
+                        if (parser.relocatable)
+                        {
+                            parser.objectFile.build(parser.components, parser.symbols, parser.exports);
+                            if (parser.context.output != null) parser.writeObjectFile();
+                            return;
+                        }
+                        if (!parser.externs.isEmpty()) throw new CompileException("#extern can only be used when making an object file.");
                         int lastSize = -1;
                         int lastStart = -1;
                         Section currentSection = null;
@@ -203,7 +428,9 @@ public class Parser
                             }
                         }
                         if (currentSection != null) parser.sections.add(currentSection);
+                        if (parser.context.output == null) return;
                         parser.makeHexFile();
+                        parser.makeMapFile();
                     }
                 },
         RESOLVE_ALL(MAKE_HEX)
@@ -215,7 +442,40 @@ public class Parser
                         while (parser.resolveAll()) ;
                     }
                 },
-        RESOLVE_INSTRUCTIONS(RESOLVE_ALL)
+        RELOCATE(RESOLVE_ALL)
+                {
+                    @Override
+                    public void work(Parser parser) throws Exception
+                    {
+                        if (parser.relocatable) parser.objectFile = new ObjectFile(parser.context.name, parser.components, parser.symbols, parser.externs);
+                    }
+                },
+        RELAX_BRANCHES(RELOCATE)
+                {
+                    @Override
+                    public void work(Parser parser) throws Exception
+                    {
+                        parser.relaxBranches();
+                    }
+                },
+        OPTIMIZE(RELAX_BRANCHES)
+                {
+                    @Override
+                    public void work(Parser parser) throws Exception
+                    {
+                        if (parser.optimize) parser.optimizations.addAll(Optimizer.optimize(parser.components));
+                    }
+                },
+        STRIP(OPTIMIZE)
+                {
+                    @Override
+                    public void work(Parser parser) throws Exception
+                    {
+                        if (parser.relocatable) parser.keep.addAll(parser.exports);
+                        if (parser.strip) parser.stripped.addAll(Stripper.strip(parser.components, parser.symbols, parser.keep));
+                    }
+                },
+        RESOLVE_INSTRUCTIONS(STRIP)
                 {
                     @Override
                     public void work(Parser parser) throws Exception
@@ -261,7 +521,7 @@ public class Parser
                     @Override
                     public void work(Parser parser) throws Exception
                     {
-                        Preprocessor.process(parser.components, parser.src, parser.includeFiles);
+                        Preprocessor.process(parser.context, parser.components, parser.src, parser.includeFiles, parser.includeHashes, parser.keep, parser.externs, parser.exports, parser.symbols);
                         StringBuilder stringBuilder = new StringBuilder();
                         for (Component component : parser.components) stringBuilder.append(((SrcComponent) component).contents).append('\n');
                         parser.postPre = stringBuilder.toString();
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.compiler.components.SrcComponent;
+import net.dries007.j8051.compiler.components.Symbol;
+import net.dries007.j8051.util.exceptions.SymbolAlreadyDefinedException;
+
+import java.io.*;
+import java.util.*;
+
+import static net.dries007.j8051.util.Constants.PCH_FOLDER;
+
+/**
+ * The resolved symbols of an include file that only contains EQU, DATA and BIT definitions (like the SFR list of a chip).
+ * <p/>
+ * Made the first time a file is included and stored in PCH_FOLDER as [SHA-1 of the file].pch, so later compiles
+ * (also in other processes) skip splitting, finding and resolving those symbols. Only used if none of the identifiers
+ * in the file is a macro at the point of the #include, otherwise the text is included as usual.
+ *
+ * @author Dries007
+ */
+public class PrecompiledHeader
+{
+    public static final  PrecompiledHeader NONE    = new PrecompiledHeader();
+    private static final int               MAGIC   = 0x4A385048; // J8PH
+    private static final int               VERSION = 1;
+
+    private final String[]        keys;
+    private final Symbol.Type[]   types;
+    private final int[]           values;
+    private final String[]        expressions;
+    private final int[]           lines;
+    private final HashSet<String> identifiers = new HashSet<>();
+
+    private PrecompiledHeader()
+    {
+        this(0);
+    }
+
+    private PrecompiledHeader(int size)
+    {
+        keys = new String[size];
+        types = new Symbol.Type[size];
+        values = new int[size];
+        expressions = new String[size];
+        lines = new int[size];
+    }
+
+    /**
+     * From memory, the PCH_FOLDER or by resolving the file. Never throws, NONE if the file can't be precompiled.
+     * Includes that are not files never touch the PCH_FOLDER.
+     */
+    public static PrecompiledHeader get(IncludeCache.Entry entry)
+    {
+        PrecompiledHeader header = entry.header;
+        if (header != null) return header;
+        File file = entry.virtual ? null : new File(PCH_FOLDER, entry.hash + ".pch");
+        try
+        {
+            if (file != null && file.exists()) header = read(file);
+        }
+        catch (IOException ignored)
+        {
+            // Corrupt or old version, make it again
+        }
+        if (header == null)
+        {
+            header = make(entry);
+            if (header != NONE && file != null)
+            {
+                try
+                {
+                    header.write(file);
+                }
+                catch (IOException ignored)
+                {
+                    // Read only folder, only keep it in memory
+                }
+            }
+        }
+        entry.header = header;
+        return header;
+    }
+
+    /**
+     * Add the symbols to the map, if none of the identifiers are macros and none of the symbols exist already.
+     *
+     * @return false if the header can't be used and the text must be included instead (that also gives the proper error)
+     */
+    public boolean apply(Map<String, ?> macros, Map<String, Symbol> symbols)
+    {
+        if (this == NONE) return false;
+        for (String macro : macros.keySet()) if (identifiers.contains(macro)) return false;
+        for (String key : keys) if (symbols.containsKey(key.toLowerCase())) return false;
+        for (int i = 0; i < keys.length; i++) symbols.put(keys[i].toLowerCase(), new Symbol(lines[i], keys[i], types[i], values[i], expressions[i]));
+        return true;
+    }
+
+    private static PrecompiledHeader make(IncludeCache.Entry entry)
+    {
+        LinkedList<Component> components = new LinkedList<>();
+        for (int i = 0; i < entry.lines.length; i++)
+        {
+            if (entry.lines[i].charAt(0) == '#') return NONE;
+            components.add(new SrcComponent(entry.lineNumbers[i], Preprocessor.replaceAcsii(entry.lines[i])));
+        }
+        HashMap<String, Symbol> symbols = new HashMap<>();
+        try
+        {
+            Symbol.findSymbols(components, symbols);
+            //noinspection StatementWithEmptyBody
+            while (Symbol.resolveSymbols(components, symbols)) ;
+        }
+        catch (SymbolAlreadyDefinedException | NumberFormatException e)
+        {
+            return NONE;
+        }
+        if (!components.isEmpty()) return NONE; // Not all lines are resolved definitions
+        ArrayList<Symbol> list = new ArrayList<>(symbols.values());
+        PrecompiledHeader header = new PrecompiledHeader(list.size());
+        for (int i = 0; i < list.size(); i++)
+        {
+            Symbol symbol = list.get(i);
+            if (!symbol.isDefined() || (symbol.type != Symbol.Type.EQU && symbol.type != Symbol.Type.DATA && symbol.type != Symbol.Type.BIT)) return NONE;
+            header.keys[i] = symbol.key;
+            header.types[i] = symbol.type;
+            header.values[i] = symbol.intValue;
+            header.expressions[i] = symbol.stringValue;
+            header.lines[i] = symbol.getSrcLine();
+        }
+        for (String line : entry.lines) Collections.addAll(header.identifiers, line.split("\\W+"));
+        return header;
+    }
+
+    private static PrecompiledHeader read(File file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            PrecompiledHeader header = new PrecompiledHeader(in.readInt());
+            for (int i = 0; i < header.keys.length; i++)
+            {
+                header.keys[i] = in.readUTF();
+                header.types[i] = Symbol.Type.values()[in.readByte()];
+                header.values[i] = in.readInt();
+                header.expressions[i] = in.readUTF();
+                header.lines[i] = in.readInt();
+            }
+            for (int i = in.readInt(); i > 0; i--) header.identifiers.add(in.readUTF());
+            return header;
+        }
+    }
+
+    private void write(File file) throws IOException
+    {
+        if (!file.getParentFile().mkdirs() && !file.getParentFile().isDirectory()) throw new IOException("Can't make " + file.getParent());
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile()); // Unique, parallel builds may write the same header
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++)
+            {
+                out.writeUTF(keys[i]);
+                out.writeByte(types[i].ordinal());
+                out.writeInt(values[i]);
+                out.writeUTF(expressions[i]);
+                out.writeInt(lines[i]);
+            }
+            out.writeInt(identifiers.size());
+            for (String identifier : identifiers) out.writeUTF(identifier);
+        }
+        if (!tmp.renameTo(file)) // Someone else wrote it first
+        {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+}
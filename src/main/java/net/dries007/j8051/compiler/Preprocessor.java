@@ -31,22 +31,18 @@
 
 package net.dries007.j8051.compiler;
 
-import net.dries007.j8051.Main;
 import net.dries007.j8051.compiler.components.Component;
 import net.dries007.j8051.compiler.components.SrcComponent;
+import net.dries007.j8051.compiler.components.Symbol;
+import net.dries007.j8051.util.IntegerEvaluator;
 import net.dries007.j8051.util.exceptions.IncludeException;
 import net.dries007.j8051.util.exceptions.PreprocessorException;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Map;
+import java.util.*;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static net.dries007.j8051.util.Constants.*;
 
@@ -61,7 +57,7 @@ public class Preprocessor
     {
     }
 
-    public static void process(LinkedList<Component> components, String srcText, Map<String, String> includeFiles) throws PreprocessorException, IOException
+    public static void process(CompileContext context, LinkedList<Component> components, String srcText, Map<String, String> includeFiles, Map<String, String> includeHashes, Set<String> keep, Set<String> externs, Set<String> exports, Map<String, Symbol> resolved) throws PreprocessorException, IOException
     {
         Matcher matcher;
         String[] split = srcText.split("\\n");
@@ -74,45 +70,82 @@ public class Preprocessor
         }
 
         HashMap<String, Macro> symbols = new HashMap<>();
-        LinkedList<Boolean> ifList = new LinkedList<>();
+        LinkedList<Branch> ifList = new LinkedList<>();
 
         ListIterator<Component> i = components.listIterator();
         while (i.hasNext())
         {
-            String src = ((SrcComponent) i.next()).contents;
+            SrcComponent component = (SrcComponent) i.next();
+            i.remove();
+            final int line = component.getSrcLine();
+            String src = component.contents;
             if (src.isEmpty()) continue;
+            final boolean active = ifList.isEmpty() || ifList.getLast() == Branch.ACTIVE || ifList.getLast() == Branch.ELSE_ACTIVE;
             if (src.charAt(0) == PREFIX_PRECOMPILER) // Initial check is fast
             {
+                // Conditionals first, they are the only thing that counts in an inactive block
+                matcher = IFDEF.matcher(src);
+                if (matcher.matches())
+                {
+                    ifList.add(!active ? Branch.DONE : symbols.containsKey(matcher.group(1)) ? Branch.ACTIVE : Branch.WAITING);
+                    continue;
+                }
+                matcher = IFNDEF.matcher(src);
+                if (matcher.matches())
+                {
+                    ifList.add(!active ? Branch.DONE : !symbols.containsKey(matcher.group(1)) ? Branch.ACTIVE : Branch.WAITING);
+                    continue;
+                }
+                matcher = IF.matcher(src);
+                if (matcher.matches())
+                {
+                    ifList.add(!active ? Branch.DONE : evaluate(component, matcher.group(1), symbols) ? Branch.ACTIVE : Branch.WAITING);
+                    continue;
+                }
+                matcher = ELIF.matcher(src);
+                if (matcher.matches())
+                {
+                    if (ifList.isEmpty()) throw new PreprocessorException(component, "#elif without #if");
+                    Branch branch = ifList.removeLast();
+                    if (branch == Branch.ELSE_ACTIVE || branch == Branch.ELSE_DONE) throw new PreprocessorException(component, "#elif after #else");
+                    if (branch == Branch.WAITING) ifList.add(evaluate(component, matcher.group(1), symbols) ? Branch.ACTIVE : Branch.WAITING);
+                    else ifList.add(Branch.DONE);
+                    continue;
+                }
+                matcher = ELSE.matcher(src);
+                if (matcher.matches())
+                {
+                    if (ifList.isEmpty()) throw new PreprocessorException(component, "#else without #if");
+                    Branch branch = ifList.removeLast();
+                    if (branch == Branch.ELSE_ACTIVE || branch == Branch.ELSE_DONE) throw new PreprocessorException(component, "#else after #else");
+                    ifList.add(branch == Branch.WAITING ? Branch.ELSE_ACTIVE : Branch.ELSE_DONE);
+                    continue;
+                }
+                matcher = ENDIF.matcher(src);
+                if (matcher.matches())
+                {
+                    if (ifList.isEmpty()) throw new PreprocessorException(component, "#endif without #if");
+                    ifList.removeLast();
+                    continue;
+                }
+                if (!active) continue;
                 matcher = INCLUDE_A.matcher(src);
                 if (matcher.matches())
                 {
-                    i.remove();
-                    include(i, new File(matcher.group(1)), includeFiles);
+                    // Step back over the included lines, so they get processed next
+                    for (int n = include(context, component, i, matcher.group(1), false, includeFiles, includeHashes, symbols, resolved); n > 0; n--) i.previous();
                     continue;
                 }
                 matcher = INCLUDE_R.matcher(src);
                 if (matcher.matches())
                 {
-                    i.remove();
-                    include(i, new File(Main.includeFile, matcher.group(1)), includeFiles);
+                    for (int n = include(context, component, i, matcher.group(1), true, includeFiles, includeHashes, symbols, resolved); n > 0; n--) i.previous();
                     continue;
                 }
-            }
-        }
-        i = components.listIterator();
-        while (i.hasNext())
-        {
-            SrcComponent component = (SrcComponent) i.next();
-            i.remove();
-            final int line = component.getSrcLine();
-            String src = component.contents;
-            if (src.isEmpty()) continue;
-            if (src.charAt(0) == PREFIX_PRECOMPILER) // Initial check is fast
-            {
                 matcher = DEFINE.matcher(src);
                 if (matcher.matches())
                 {
-                    if (symbols.containsKey(matcher.group(1))) throw new PreprocessorException(null, matcher.group(1) + " already defined.");
+                    if (symbols.containsKey(matcher.group(1))) throw new PreprocessorException(component, matcher.group(1) + " already defined.");
                     symbols.put(matcher.group(1), new Macro(matcher, i));
                     continue;
                 }
@@ -122,130 +155,335 @@ public class Preprocessor
                     symbols.remove(matcher.group(1));
                     continue;
                 }
-                matcher = IFDEF.matcher(src);
+                matcher = KEEP.matcher(src);
                 if (matcher.matches())
                 {
-                    ifList.add(symbols.containsKey(matcher.group(1)));
+                    keep.add(matcher.group(1).toLowerCase());
                     continue;
                 }
-                matcher = IFNDEF.matcher(src);
+                matcher = EXTERN.matcher(src);
                 if (matcher.matches())
                 {
-                    ifList.add(!symbols.containsKey(matcher.group(1)));
+                    for (String name : matcher.group(1).split("\\s*,\\s*"))
+                    {
+                        // Undefined until link time, so expressions using it stay text
+                        if (resolved.containsKey(name.toLowerCase())) throw new PreprocessorException(component, "Extern " + name + " is already defined");
+                        resolved.put(name.toLowerCase(), new Symbol(line, name, Symbol.Type.EQU, null, null));
+                        externs.add(name.toLowerCase());
+                    }
                     continue;
                 }
-                matcher = ELSE.matcher(src);
+                matcher = PUBLIC.matcher(src);
                 if (matcher.matches())
                 {
-                    ifList.add(!ifList.removeLast());
+                    for (String name : matcher.group(1).split("\\s*,\\s*")) exports.add(name.toLowerCase());
                     continue;
                 }
-                matcher = ENDIF.matcher(src);
-                if (matcher.matches())
+            }
+            if (!active) continue; // Skipped before any macro is expanded
+            SrcComponent expanded = new SrcComponent(line, replaceAcsii(expand(component, src, symbols)));
+            expanded.setIncluded(component.isIncluded());
+            i.add(expanded);
+        }
+        if (!ifList.isEmpty()) throw new PreprocessorException(null, ifList.size() + " #if without #endif");
+    }
+
+    /**
+     * Expand all macros in a line. The line is scanned once, every identifier is looked up in the map.
+     * The result of an expansion is scanned again with that macro disabled, so a macro that (indirectly) uses itself is an error.
+     * Nothing inside '...' or "..." is expanded, and neither is a function like macro without arguments.
+     */
+    static String expand(Component component, String src, Map<String, Macro> symbols) throws PreprocessorException
+    {
+        if (symbols.isEmpty()) return src;
+        StringBuilder out = new StringBuilder(src.length() + 16);
+        expand(component, src, symbols, new HashSet<String>(), out);
+        return out.toString();
+    }
+
+    private static void expand(Component component, String src, Map<String, Macro> symbols, Set<String> expanding, StringBuilder out) throws PreprocessorException
+    {
+        final int length = src.length();
+        int i = 0;
+        while (i < length)
+        {
+            char c = src.charAt(i);
+            if (c == '"' || c == '\'')
+            {
+                int end = skipLiteral(src, i);
+                out.append(src, i, end);
+                i = end;
+                continue;
+            }
+            if (!isWordChar(c))
+            {
+                out.append(c);
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && isWordChar(src.charAt(i))) i++;
+            Macro macro = Character.isDigit(c) ? null : symbols.get(src.substring(start, i)); // Numbers like 0FFh are one token
+            if (macro == null)
+            {
+                out.append(src, start, i);
+                continue;
+            }
+            if (expanding.contains(macro.name)) throw new PreprocessorException(component, "Recursive macro " + macro.name);
+            String[] args = null;
+            if (macro.params != null)
+            {
+                int open = i;
+                while (open < length && Character.isWhitespace(src.charAt(open))) open++;
+                if (open == length || src.charAt(open) != '(')
                 {
-                    ifList.removeLast();
+                    out.append(src, start, i);
                     continue;
                 }
-            }
-            boolean changes;
-            do
-            {
-                changes = false;
-                for (String key : symbols.keySet())
+                ArrayList<String> list = new ArrayList<>();
+                int depth = 0, argStart = open + 1, j = open + 1;
+                for (; j < length; j++)
                 {
-                    if (src.contains(key))
+                    char a = src.charAt(j);
+                    if (a == '"' || a == '\'') j = skipLiteral(src, j) - 1;
+                    else if (a == '(') depth++;
+                    else if (a == ')' && depth-- == 0) break;
+                    else if (a == ',' && depth == 0)
                     {
-                        String oldLine = src;
-                        src = symbols.get(key).acton(src);
-                        if (!oldLine.equals(src)) changes = true;
+                        list.add(src.substring(argStart, j));
+                        argStart = j + 1;
                     }
                 }
-            } while (changes);
-            i.add(new SrcComponent(line, replaceAcsii(src)));
+                if (j == length) throw new PreprocessorException(component, "No ) after the arguments of " + macro.name);
+                list.add(src.substring(argStart, j));
+                if (list.size() != macro.params.length) throw new PreprocessorException(component, macro.name + " needs " + macro.params.length + " arguments, not " + list.size());
+                args = new String[list.size()];
+                for (int k = 0; k < args.length; k++)
+                {
+                    StringBuilder arg = new StringBuilder();
+                    expand(component, list.get(k).trim(), symbols, expanding, arg);
+                    args[k] = arg.toString();
+                }
+                i = j + 1;
+            }
+            expanding.add(macro.name);
+            expand(component, macro.substitute(args), symbols, expanding, out);
+            expanding.remove(macro.name);
         }
     }
 
-    private static String replaceAcsii(String src)
+    private static boolean isWordChar(char c)
     {
-        Matcher matcher;
-        while ((matcher = CHAR.matcher(src)).find())
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * @return the index after the closing quote, or the end of the string
+     */
+    private static int skipLiteral(String src, int start)
+    {
+        int end = src.indexOf(src.charAt(start), start + 1);
+        return end == -1 ? src.length() : end + 1;
+    }
+
+    /**
+     * #if and #elif: defined(NAME) is 1 if NAME is a macro, then macros are expanded and the result is evaluated. Not 0 is true.
+     */
+    private static boolean evaluate(Component component, String expression, Map<String, Macro> symbols) throws PreprocessorException
+    {
+        Matcher matcher = DEFINED.matcher(expression);
+        StringBuffer buffer = new StringBuffer();
+        while (matcher.find()) matcher.appendReplacement(buffer, symbols.containsKey(matcher.group(1)) ? "1" : "0");
+        matcher.appendTail(buffer);
+        String expanded = expand(component, buffer.toString(), symbols);
+        try
+        {
+            return IntegerEvaluator.EVALUATOR.evaluate(expanded, new HashMap<String, Symbol>()) != 0;
+        }
+        catch (RuntimeException e)
         {
-            src = matcher.replaceFirst(Integer.toHexString((int) matcher.group(1).charAt(0)) + "h");
+            throw new PreprocessorException(component, "Can't evaluate #if " + expression + " (" + expanded + "): " + e.getMessage());
         }
-        while ((matcher = STRING.matcher(src)).find())
+    }
+
+    /**
+     * Lowers 'c' and "string" to hex bytes ("AB" becomes 41h, 42h) in one pass over the line.
+     */
+    static String replaceAcsii(String src)
+    {
+        if (src.indexOf('\'') == -1 && src.indexOf('"') == -1) return src; // Most lines
+        final int length = src.length();
+        StringBuilder out = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++)
         {
-            char[] chars = matcher.group(1).toCharArray();
-            StringBuilder stringBuilder = new StringBuilder();
-            for (int i = 0; i < chars.length; i++)
+            char c = src.charAt(i);
+            if (c == '\'' && i + 2 < length && src.charAt(i + 2) == '\'')
             {
-                stringBuilder.append(Integer.toHexString((int) chars[i])).append('h');
-                if (i + 1 < chars.length) stringBuilder.append(", ");
+                appendByte(out, src.charAt(i + 1));
+                i += 2;
+            }
+            else if (c == '"' && src.indexOf('"', i + 1) != -1)
+            {
+                int end = src.indexOf('"', i + 1);
+                for (int j = i + 1; j < end; j++)
+                {
+                    if (j != i + 1) out.append(", ");
+                    appendByte(out, src.charAt(j));
+                }
+                i = end;
             }
-            src = matcher.replaceFirst(stringBuilder.toString());
+            else out.append(c);
         }
-        return src;
+        return out.toString();
     }
 
-    private static void include(ListIterator<Component> components, File file, Map<String, String> includeFiles) throws IncludeException, IOException
+    private static void appendByte(StringBuilder out, char c)
     {
-        String text = FileUtils.readFileToString(file, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT)).replaceAll("\\r\\n", "\n");
-        includeFiles.put(FilenameUtils.getBaseName(file.getName()), text);
-        String split[] = text.split("\\n");
-        for (int i = 0; i < split.length; i++)
+        String hex = Integer.toHexString(c);
+        if (Character.isLetter(hex.charAt(0))) out.append('0'); // A number can't start with a letter
+        out.append(hex).append('h');
+    }
+
+    /**
+     * @return the file from the first folder that has it, or from the first folder if none do (for the error)
+     */
+    private static File find(List<File> includePath, String name)
+    {
+        for (File folder : includePath)
         {
-            int comment = split[i].indexOf(PREFIX_COMMENT);
-            if (comment != -1) split[i] = split[i].substring(0, comment);
-            split[i] = split[i].trim();
-            if (!split[i].isEmpty()) components.add(new SrcComponent(i, split[i]));
+            File file = new File(folder, name);
+            if (file.exists()) return file;
+        }
+        return includePath.isEmpty() ? new File(name) : new File(includePath.get(0), name);
+    }
+
+    /**
+     * @param system true for #include &lt;...&gt;, false for #include "..."
+     */
+    static IncludeCache.Entry resolve(CompileContext context, SrcComponent component, String name, boolean system) throws IncludeException, IOException
+    {
+        if (context.includes != null)
+        {
+            String text = context.includes.get(name, system);
+            if (text == null) throw new IncludeException(component, "Include not found: " + name);
+            return IncludeCache.INCLUDE_CACHE.get(text);
+        }
+        File file = new File(name);
+        if (system) file = find(context.includePath, name);
+        else if (!file.isAbsolute() && context.folder != null) file = new File(context.folder, name);
+        if (!file.exists()) throw new IncludeException(component, "Include not found: " + file);
+        return IncludeCache.INCLUDE_CACHE.get(file, context.encoding);
+    }
+
+    /**
+     * @return the amount of lines added, 0 if the precompiled header was used
+     */
+    private static int include(CompileContext context, SrcComponent component, ListIterator<Component> components, String name, boolean system, Map<String, String> includeFiles, Map<String, String> includeHashes, Map<String, Macro> macros, Map<String, Symbol> resolved) throws IncludeException, IOException
+    {
+        IncludeCache.Entry entry = resolve(context, component, name, system);
+        includeHashes.put(system ? '<' + name + '>' : '"' + name + '"', entry.hash);
+        includeFiles.put(FilenameUtils.getBaseName(name), entry.text);
+        if (PrecompiledHeader.get(entry).apply(macros, resolved)) return 0;
+        for (int i = 0; i < entry.lines.length; i++)
+        {
+            SrcComponent line = new SrcComponent(entry.lineNumbers[i], entry.lines[i]);
+            line.setIncluded(true);
+            components.add(line);
         }
+        return entry.lines.length;
     }
 
     /**
-     * Warning: Regex madness ahead.
+     * State of one #if level
+     */
+    private static enum Branch
+    {
+        /**
+         * The current branch is used
+         */
+        ACTIVE,
+        /**
+         * No branch was used yet, #elif or #else can still be
+         */
+        WAITING,
+        /**
+         * A branch was used already, or the #if is inside an inactive block
+         */
+        DONE,
+        /**
+         * After #else that is used, only #endif can follow
+         */
+        ELSE_ACTIVE,
+        /**
+         * After #else that is skipped, only #endif can follow
+         */
+        ELSE_DONE
+    }
+
+    /**
+     * A #define. The body is split into text and parameters once, so using it is a simple concatenation.
      *
      * @author Dries007
      */
     public static class Macro
     {
-        private String   name;
-        private String[] args;
-        private String   text;
-        private Pattern  pattern;
+        public final String   name;
+        /**
+         * Null for object like macros
+         */
+        public final String[] params;
+        /**
+         * String for text, Integer for the index of a parameter
+         */
+        private final ArrayList<Object> parts = new ArrayList<>();
 
         public Macro(Matcher matcher, ListIterator<Component> iterator)
         {
             name = matcher.group(1);
-            args = matcher.group(2) != null ? matcher.group(2).split(", ?") : null;
-            text = matcher.group(3);
-            while (text.charAt(text.length() - 1) == '\\')
+            params = matcher.group(2) != null ? matcher.group(2).trim().split("\\s*,\\s*") : null;
+            String text = matcher.group(3) == null ? "" : matcher.group(3);
+            while (!text.isEmpty() && text.charAt(text.length() - 1) == '\\' && iterator.hasNext())
+            {
+                text = text.substring(0, text.length() - 1) + " " + ((SrcComponent) iterator.next()).contents;
+                iterator.remove();
+            }
+            if (params == null)
             {
-                text = text.substring(0, text.length() - 1) + " " + iterator.next();
+                parts.add(text);
+                return;
             }
-            if (args != null)
+            List<String> paramList = Arrays.asList(params);
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < text.length(); )
             {
-                StringBuilder patternBuilder = new StringBuilder();
-                patternBuilder.append(name).append("\\(");
-                for (int i = 0; i < args.length; i++)
+                char c = text.charAt(i);
+                int start = i;
+                if (c == '"' || c == '\'') i = skipLiteral(text, i);
+                else if (isWordChar(c)) while (i < text.length() && isWordChar(text.charAt(i))) i++;
+                else i++;
+                int param = isWordChar(c) ? paramList.indexOf(text.substring(start, i)) : -1;
+                if (param == -1)
                 {
-                    patternBuilder.append("([^,]+?)");
-                    if (i != args.length - 1) patternBuilder.append(", ?");
+                    literal.append(text, start, i);
+                    continue;
                 }
-                patternBuilder.append("\\)");
-                pattern = Pattern.compile(patternBuilder.toString());
+                if (literal.length() != 0) parts.add(literal.toString());
+                literal.setLength(0);
+                parts.add(param);
             }
+            if (literal.length() != 0) parts.add(literal.toString());
         }
 
-        public String acton(String line)
+        public String substitute(String[] args)
         {
-            if (args == null) return line.replace(name, text);
-            Matcher matcher = pattern.matcher(line);
-            if (!matcher.find()) return line;
-            String replacement = text;
-            for (int i = 0; i < args.length; i++)
+            if (params == null) return (String) parts.get(0);
+            StringBuilder out = new StringBuilder();
+            for (Object part : parts)
             {
-                replacement = replacement.replace(args[i], matcher.group(i + 1));
+                if (part instanceof Integer) out.append(args[(Integer) part]);
+                else out.append((String) part);
             }
-            return matcher.replaceFirst(replacement);
+            return out.toString();
         }
     }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.util.exceptions.CompileException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static net.dries007.j8051.util.Constants.*;
+
+/**
+ * A firmware made of many modules. Every module is compiled to an object file in parallel, then they are linked.
+ * <p/>
+ * Project file, one command per line, paths relative to the project file:
+ * <pre>
+ * module file     Add a module, linked in the order given
+ * include folder  Add a folder to search for #include &lt;...&gt;, in the order given (default: the project folder)
+ * output file     The hex file (default: project name.hex)
+ * </pre>
+ * The biggest modules are started first, so one big module doesn't end up running alone at the end.
+ *
+ * @author Dries007
+ */
+public class Project
+{
+    public final File            file;
+    /**
+     * Of the project file and all modules, null for the platform default
+     */
+    public final String          encoding;
+    public final ArrayList<File> modules     = new ArrayList<>();
+    public final ArrayList<File> includePath = new ArrayList<>();
+    public       File            output;
+
+    public Project(File file, String encoding) throws IOException
+    {
+        this.file = file;
+        this.encoding = encoding;
+        File folder = file.getAbsoluteFile().getParentFile();
+        @SuppressWarnings("unchecked")
+        List<String> lines = FileUtils.readLines(file, encoding);
+        for (int lineNr = 0; lineNr < lines.size(); lineNr++)
+        {
+            String line = lines.get(lineNr);
+            int comment = line.indexOf(PREFIX_COMMENT);
+            if (comment != -1) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            String[] split = line.split("\\s+", 2);
+            if (split.length != 2) throw new IOException(file.getName() + ":" + (lineNr + 1) + " Invalid command: " + line);
+            switch (split[0].toLowerCase())
+            {
+                case "module":
+                    modules.add(new File(folder, split[1]));
+                    break;
+                case "include":
+                    includePath.add(new File(folder, split[1]));
+                    break;
+                case "output":
+                    output = new File(folder, split[1]);
+                    break;
+                default:
+                    throw new IOException(file.getName() + ":" + (lineNr + 1) + " Unknown command: " + split[0]);
+            }
+        }
+        if (modules.isEmpty()) throw new IOException(file.getName() + " has no modules.");
+        if (includePath.isEmpty()) includePath.add(folder);
+        if (output == null) output = new File(folder, FilenameUtils.getBaseName(file.getName()) + ".hex");
+    }
+
+    /**
+     * Compile all modules, link them and write the hex file. Prints the time per module.
+     */
+    public Linker build(int threads, PrintStream out) throws Exception
+    {
+        final long start = System.nanoTime();
+        final Module[] results = new Module[modules.size()];
+        ArrayList<Integer> order = new ArrayList<>(modules.size());
+        for (int i = 0; i < modules.size(); i++) order.add(i);
+        Collections.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                return Long.compare(modules.get(o2).length(), modules.get(o1).length());
+            }
+        });
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            HashMap<Integer, Future<Module>> futures = new HashMap<>();
+            for (final int i : order)
+            {
+                futures.put(i, pool.submit(new Callable<Module>()
+                {
+                    @Override
+                    public Module call() throws Exception
+                    {
+                        return compile(modules.get(i));
+                    }
+                }));
+            }
+            for (int i = 0; i < results.length; i++)
+            {
+                try
+                {
+                    results[i] = futures.get(i).get();
+                }
+                catch (ExecutionException e)
+                {
+                    results[i] = new Module(modules.get(i), null, 0, getMessage(modules.get(i), e.getCause()));
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        out.println(" -=- Build -=- ");
+        out.printf("%-20s %8s %8s %12s%n", "Module", "Time", "Size", "Relocations");
+        long total = 0;
+        int failed = 0;
+        ArrayList<ObjectFile> objects = new ArrayList<>(results.length);
+        for (Module module : results)
+        {
+            String name = FilenameUtils.getBaseName(module.file.getName());
+            total += module.time;
+            if (module.object == null)
+            {
+                out.printf("%-20s FAILED %s%n", name, module.error);
+                failed++;
+                continue;
+            }
+            objects.add(module.object);
+            out.printf("%-20s %5d ms %8d %12d%n", name, module.time / 1000000, module.object.getSize(), module.object.relocations.size());
+        }
+        if (failed != 0) throw new CompileException(failed + " of " + results.length + " modules failed.");
+
+        long linkStart = System.nanoTime();
+        Linker linker = new Linker(objects);
+        linker.link();
+        linker.writeHexFile(CompileContext.forFile(output, includePath, encoding));
+        long end = System.nanoTime();
+        out.printf("%-20s %5d ms%n", "(link)", (end - linkStart) / 1000000);
+        out.printf("%d modules on %d threads in %d ms, %d ms compile time (%.1fx parallel), %s written%n", results.length, threads, (end - start) / 1000000, total / 1000000, (double) total / (linkStart - start), output);
+        return linker;
+    }
+
+    private Module compile(File module) throws Exception
+    {
+        long start = System.nanoTime();
+        CompileContext context = CompileContext.forFile(module, includePath, encoding);
+        Parser parser = new Parser(context.read(module), context);
+        parser.relocatable = true;
+        while (parser.hasWork()) parser.doWork();
+        return new Module(module, parser.objectFile, System.nanoTime() - start, null);
+    }
+
+    private static String getMessage(File module, Throwable e)
+    {
+        if (e instanceof CompileException && ((CompileException) e).component != null) return module.getName() + ":" + (((CompileException) e).component.getSrcLine() + 1) + " " + e.getMessage();
+        return module.getName() + " " + e;
+    }
+
+    private static class Module
+    {
+        final File       file;
+        final ObjectFile object;
+        final long       time;
+        final String     error;
+
+        Module(File file, ObjectFile object, long time, String error)
+        {
+            this.file = file;
+            this.object = object;
+            this.time = time;
+            this.error = error;
+        }
+    }
+}
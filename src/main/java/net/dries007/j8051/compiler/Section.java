@@ -42,6 +42,8 @@ import java.util.LinkedList;
  */
 public class Section
 {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
     private final ArrayList<Integer> hexList = new ArrayList<>();
     public final Integer startaddress;
 
@@ -56,23 +58,41 @@ public class Section
         {
             final int length = Math.min(0x20, hexList.size() - 0x20 * i);
             final int address = (0x20 * i);
-            int sum = length + (address & 0xFF) + (address >>> 8);
+            final int absolute = startaddress + address;
+            int sum = length + (absolute & 0xFF) + (absolute >>> 8);
             StringBuilder line = new StringBuilder(75); // 75 = normal line length
-            line.append(String.format(":%02X%04X00", length, startaddress + address));
+            line.append(':');
+            appendHex(line, length, 2);
+            appendHex(line, absolute, 4);
+            line.append("00");
             for (int j = 0; j < length; j++)
             {
-                if (hexList.get(address + j) > 0xFF) throw new CompileException("One byte can't be more then 0xFF.");
-                sum += hexList.get(address + j);
-                line.append(String.format("%02X", hexList.get(address + j)));
+                int b = hexList.get(address + j);
+                if (b > 0xFF) throw new CompileException("One byte can't be more then 0xFF.");
+                sum += b;
+                appendHex(line, b, 2);
             }
-            line.append(String.format("%02X", ((~sum) + 1) & 0xFF));
+            appendHex(line, ((~sum) + 1) & 0xFF, 2);
             lines.add(line.toString());
         }
     }
 
+    /**
+     * String.format per byte was most of the time spent writing a hex file
+     */
+    private static void appendHex(StringBuilder line, int value, int digits)
+    {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) line.append(HEX[(value >>> shift) & 0xF]);
+    }
+
     public void addData(Component component)
     {
-        for (int b : component.getData()) hexList.add(b);
+        addData(component.getData());
+    }
+
+    public void addData(int[] data)
+    {
+        for (int b : data) hexList.add(b);
     }
 
     public void addToHexTable(LinkedList<String[]> data)
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.Instruction.Type;
+import net.dries007.j8051.compiler.components.*;
+import net.dries007.j8051.util.exceptions.SymbolUndefinedException;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Dead code stripping. Runs on the instructions after they are matched, but before any address is assigned.
+ * <p/>
+ * The code is cut in blocks at every label, ORG and END. A block is kept when it is the first block after an ORG
+ * (the reset and interrupt vectors), when its label is in a #keep directive or referenced by a symbol,
+ * or when a kept block refers to its label (jumps, calls, MOV DPTR, #label, DW label, ...) or falls through into it.
+ * Everything else is removed, including the label.
+ *
+ * @author Dries007
+ */
+public class Stripper
+{
+    private static final Pattern WORD = Pattern.compile("\\W+");
+
+    private Stripper()
+    {
+    }
+
+    /**
+     * @param keep lowercase labels that must always be kept
+     * @return Line, Label, Bytes of every block that was removed
+     */
+    public static List<Object[]> strip(LinkedList<Component> components, HashMap<String, Symbol> symbols, Set<String> keep)
+    {
+        // Cut into blocks
+        ArrayList<Block> blocks = new ArrayList<>();
+        HashMap<String, Block> labels = new HashMap<>();
+        Block block = null;
+        for (Component component : components)
+        {
+            if (component instanceof Symbol && ((Symbol) component).type != Symbol.Type.LABEL)
+            {
+                block = null; // ORG & END, the next block starts a section
+                continue;
+            }
+            if (block == null || component instanceof Symbol)
+            {
+                Block next = new Block(block == null);
+                if (block != null) block.next = next;
+                block = next;
+                blocks.add(block);
+                if (component instanceof Symbol)
+                {
+                    block.label = (Symbol) component;
+                    labels.put(block.label.key.toLowerCase(), block);
+                }
+            }
+            block.components.add(component);
+        }
+
+        // Roots
+        ArrayDeque<Block> work = new ArrayDeque<>();
+        for (Block b : blocks) if (b.first || (b.label != null && keep.contains(b.label.key.toLowerCase()))) mark(b, work);
+        for (Symbol symbol : symbols.values()) if (symbol.type != Symbol.Type.LABEL && symbol.stringValue != null) markAll(symbol.stringValue, labels, work);
+        for (Component component : components) if (component instanceof SrcComponent) markAll(((SrcComponent) component).contents, labels, work);
+
+        while (!work.isEmpty())
+        {
+            Block b = work.poll();
+            Component last = null;
+            for (Component component : b.components)
+            {
+                if (component instanceof InstructionComponent && ((InstructionComponent) component).getArguments() != null)
+                {
+                    for (Object argument : ((InstructionComponent) component).getArguments()) if (argument instanceof String) markAll((String) argument, labels, work);
+                }
+                else if (component instanceof Bytes)
+                {
+                    for (Object object : ((Bytes) component).objects) if (object instanceof String) markAll((String) object, labels, work);
+                }
+                if (!(component instanceof Symbol)) last = component;
+            }
+            if (b.next != null && fallsThrough(last)) mark(b.next, work);
+        }
+
+        // Remove the rest
+        ArrayList<Object[]> removed = new ArrayList<>();
+        HashSet<Component> dead = new HashSet<>();
+        for (Block b : blocks)
+        {
+            if (b.live) continue;
+            int bytes = 0;
+            for (Component component : b.components)
+            {
+                try
+                {
+                    bytes += component.getSize(symbols);
+                }
+                catch (SymbolUndefinedException ignored)
+                {
+                    // DS with a size that depends on a label, can't count it
+                }
+            }
+            dead.addAll(b.components);
+            symbols.remove(b.label.key.toLowerCase());
+            removed.add(new Object[]{b.label.getSrcLine(), b.label.key, bytes});
+        }
+        if (dead.isEmpty()) return removed;
+        ListIterator<Component> i = components.listIterator();
+        while (i.hasNext()) if (dead.contains(i.next())) i.remove();
+        return removed;
+    }
+
+    /**
+     * A block that ends in data or an unconditional jump or return doesn't continue into the next one.
+     */
+    private static boolean fallsThrough(Component last)
+    {
+        if (last == null) return true;
+        if (!(last instanceof InstructionComponent)) return false;
+        Type type = ((InstructionComponent) last).instruction.type;
+        return type != Type.SJMP && type != Type.AJMP && type != Type.LJMP && type != Type.JMP && type != Type.RET && type != Type.RETI;
+    }
+
+    private static void markAll(String expression, HashMap<String, Block> labels, ArrayDeque<Block> work)
+    {
+        for (String word : WORD.split(expression))
+        {
+            Block block = labels.get(word.toLowerCase());
+            if (block != null) mark(block, work);
+        }
+    }
+
+    private static void mark(Block block, ArrayDeque<Block> work)
+    {
+        if (block.live) return;
+        block.live = true;
+        work.add(block);
+    }
+
+    private static class Block
+    {
+        final boolean              first;
+        final ArrayList<Component> components = new ArrayList<>();
+        Symbol                     label;
+        Block                      next;
+        boolean                    live;
+
+        Block(boolean first)
+        {
+            this.first = first;
+        }
+    }
+}
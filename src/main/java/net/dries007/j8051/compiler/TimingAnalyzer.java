@@ -0,0 +1,694 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.compiler;
+
+import net.dries007.j8051.compiler.Instruction.Argument;
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.compiler.components.InstructionComponent;
+import net.dries007.j8051.compiler.components.Symbol;
+
+import java.util.*;
+
+/**
+ * Static worst case execution time (in machine cycles) and stack usage per routine.
+ * <p/>
+ * A routine is everything reachable from its entry without following calls, up to RET, RETI or SJMP $.
+ * Entries are call targets and labels that aren't reached from another routine, so jump targets inside a routine aren't reported separately.
+ * Calls add the cost of the called routine, which is analyzed once and reused.
+ * Loops are only bounded if they are DJNZ loops with the counter set by MOV Rn/direct, #k just before the loop, and
+ * nothing in the loop (or called from it) can write the counter, store through @Ri or switch the register bank.
+ * Writes by PUSH and calls are left out, the stack is assumed not to hold loop counters.
+ * Nested loops work, the iteration cost of the outer loop includes the inner loop.
+ * Anything else (other loops, JMP @A+DPTR, recursion, jumps into data) makes the result unbounded, with a note why.
+ * Interrupts are not taken into account.
+ *
+ * @author Dries007
+ */
+public class TimingAnalyzer
+{
+    public static final long UNBOUNDED = -1;
+    private static final int SIZE      = 0x10000;
+    private static final int MAX_STACK = 0x100;
+    private static final int ACC       = 0xE0;
+    private static final int B         = 0xF0;
+    private static final int PSW       = 0xD0;
+    private static final int DPL       = 0x82;
+    private static final int DPH       = 0x83;
+
+    private final Instruction[]            instructions = new Instruction[SIZE];
+    private final int[]                    image        = new int[SIZE];
+    private final HashMap<Integer, Routine> routines     = new HashMap<>();
+    private final BitSet                    reached      = new BitSet(SIZE); // Part of a routine, other than its entry
+
+    public TimingAnalyzer(List<Component> components)
+    {
+        for (Component component : components)
+        {
+            if (component.getData() == null) continue;
+            for (int i = 0; i < component.getData().length; i++) image[(component.address + i) & 0xFFFF] = component.getData()[i];
+            if (component instanceof InstructionComponent) instructions[component.address] = ((InstructionComponent) component).instruction;
+        }
+    }
+
+    /**
+     * @return Label, Address, Cycles, Stack, Note. Only labels that are routine entries, sorted by address.
+     */
+    public Object[][] getReport(Map<String, Symbol> symbols)
+    {
+        // Call targets first, so the labels inside them are known to be local
+        for (int pc = 0; pc < SIZE; pc++)
+        {
+            if (instructions[pc] == null) continue;
+            if (instructions[pc].type == Instruction.Type.ACALL || instructions[pc].type == Instruction.Type.LCALL) analyze(getTarget(pc, instructions[pc]));
+        }
+        ArrayList<Symbol> labels = new ArrayList<>();
+        for (Symbol symbol : symbols.values()) if (symbol.type == Symbol.Type.LABEL && symbol.isDefined() && instructions[symbol.intValue & 0xFFFF] != null) labels.add(symbol);
+        Collections.sort(labels, new Comparator<Symbol>()
+        {
+            @Override
+            public int compare(Symbol o1, Symbol o2)
+            {
+                return Integer.compare(o1.intValue, o2.intValue);
+            }
+        });
+        ArrayList<Object[]> data = new ArrayList<>();
+        for (Symbol label : labels)
+        {
+            if (reached.get(label.intValue) && !routines.containsKey(label.intValue)) continue;
+            Routine routine = analyze(label.intValue);
+            data.add(new Object[]{label.key, String.format("0x%04X", label.intValue), routine.cycles == UNBOUNDED ? "unbounded" : routine.cycles, routine.stack == UNBOUNDED ? "unbounded" : routine.stack, routine.note == null ? "" : routine.note});
+        }
+        return data.toArray(new Object[data.size()][]);
+    }
+
+    public Routine analyze(int entry)
+    {
+        Routine routine = routines.get(entry);
+        if (routine != null) return routine;
+        // Depth first over the call graph without recursion, so callees are done before their callers
+        ArrayDeque<Graph> path = new ArrayDeque<>();
+        ArrayDeque<Iterator<Integer>> todo = new ArrayDeque<>();
+        routine = new Routine(entry);
+        routines.put(entry, routine);
+        path.push(new Graph(routine));
+        todo.push(path.peek().callees.iterator());
+        while (!path.isEmpty())
+        {
+            if (todo.peek().hasNext())
+            {
+                int callee = todo.peek().next();
+                if (routines.containsKey(callee)) continue;
+                Routine next = new Routine(callee);
+                routines.put(callee, next);
+                path.push(new Graph(next));
+                todo.push(path.peek().callees.iterator());
+            }
+            else
+            {
+                todo.pop();
+                path.pop().analyze();
+            }
+        }
+        return routine;
+    }
+
+    /**
+     * @return the address a jump, branch or call goes to
+     */
+    private int getTarget(int pc, Instruction instruction)
+    {
+        Argument[] arguments = instruction.arguments;
+        for (int i = 0, offset = 1; i < arguments.length; offset += arguments[i].bytesAdded, i++)
+        {
+            switch (arguments[i])
+            {
+                case ADDR11:
+                    return ((pc + instruction.size) & 0xF800) | ((instruction.opcode & 0xE0) << 3) | image[(pc + offset) & 0xFFFF];
+                case ADDR16:
+                    return (image[(pc + offset) & 0xFFFF] << 8) | image[(pc + offset + 1) & 0xFFFF];
+                case REL:
+                    return (pc + instruction.size + (byte) image[(pc + offset) & 0xFFFF]) & 0xFFFF;
+            }
+        }
+        throw new IllegalStateException("No target: " + instruction);
+    }
+
+    /**
+     * Add what the instruction at pc can write in internal RAM and the SFRs. Only the first operand is written, except
+     * for XCH, XCHD, MUL and DIV.
+     */
+    private void addWrites(int pc, Writes writes)
+    {
+        Instruction instruction = instructions[pc];
+        switch (instruction.type)
+        {
+            case MUL:
+            case DIV:
+                writes.direct.set(ACC);
+                writes.direct.set(B);
+                break;
+            case XCH:
+            case XCHD:
+                addWrite(pc, instruction, 1, writes);
+                addWrite(pc, instruction, 0, writes);
+                break;
+            case MOVX:
+                if (instruction.arguments[0] == Argument.A) writes.direct.set(ACC); // The others write XRAM
+                break;
+            case MOV:
+            case ADD:
+            case ADDC:
+            case SUBB:
+            case ANL:
+            case ORL:
+            case XRL:
+            case INC:
+            case DEC:
+            case CLR:
+            case CPL:
+            case SETB:
+            case RL:
+            case RLC:
+            case RR:
+            case RRC:
+            case DA:
+            case SWAP:
+            case POP:
+            case DJNZ:
+            case JBC:
+            case MOVC:
+                addWrite(pc, instruction, 0, writes);
+                break;
+        }
+    }
+
+    private void addWrite(int pc, Instruction instruction, int argument, Writes writes)
+    {
+        int offset = 1;
+        for (int i = 0; i < argument; i++) offset += instruction.arguments[i].bytesAdded;
+        if (instruction.reverseOperands) offset = 3 - offset; // Because of 0x85
+        int value = image[(pc + offset) & 0xFFFF];
+        Argument type = instruction.arguments[argument];
+        switch (type)
+        {
+            case A:
+                writes.direct.set(ACC);
+                break;
+            case DIRECT:
+                writes.direct.set(value);
+                break;
+            case BIT:
+                writes.direct.set(value < 0x80 ? 0x20 + value / 8 : value & 0xF8); // The byte the bit is in
+                break;
+            case DPTR:
+                writes.direct.set(DPL);
+                writes.direct.set(DPH);
+                break;
+            case AT_R0:
+            case AT_R1:
+                writes.indirect = true;
+                break;
+            case R0:
+            case R1:
+            case R2:
+            case R3:
+            case R4:
+            case R5:
+            case R6:
+            case R7:
+                writes.registers |= 1 << (type.ordinal() - Argument.R0.ordinal());
+                break;
+        }
+    }
+
+    /**
+     * What a piece of code (and the routines it calls) can write, in any register bank
+     */
+    private static class Writes
+    {
+        final BitSet direct = new BitSet(0x100);
+        int     registers; // R0 - R7 as bits
+        boolean indirect;  // Through @R0 or @R1
+
+        void add(Writes other)
+        {
+            direct.or(other.direct);
+            registers |= other.registers;
+            indirect |= other.indirect;
+        }
+
+        /**
+         * @param opcode of a DJNZ, the second byte is the direct address (if there is one)
+         */
+        boolean changesCounter(int opcode, int address)
+        {
+            if (opcode >= 0xD8) return (registers & (1 << (opcode - 0xD8))) != 0 || indirect || direct.get(PSW) || !direct.get(0, 0x20).isEmpty();
+            return direct.get(address) || (address < 0x80 && indirect) || (address < 0x20 && registers != 0);
+        }
+    }
+
+    public static class Routine
+    {
+        public final int entry;
+        /**
+         * Machine cycles from the entry up to and including the RET, or UNBOUNDED
+         */
+        public long   cycles;
+        /**
+         * Bytes of stack used, including calls made, but not the return address of this routine itself. Or UNBOUNDED
+         */
+        public long   stack;
+        /**
+         * Why the result is unbounded, null if it isn't
+         */
+        public String note;
+        private boolean done;
+        private Writes  writes;
+
+        private Routine(int entry)
+        {
+            this.entry = entry;
+        }
+
+        private void fail(String note)
+        {
+            if (this.note == null) this.note = note;
+            cycles = UNBOUNDED;
+            stack = UNBOUNDED;
+        }
+
+        private void failStack(String note)
+        {
+            if (this.note == null) this.note = note;
+            stack = UNBOUNDED;
+        }
+    }
+
+    /**
+     * The control flow graph of one routine. Nodes are instructions, by index.
+     */
+    private class Graph
+    {
+        final Routine                   routine;
+        final HashMap<Integer, Integer> index   = new HashMap<>();
+        final ArrayList<Integer>        pcs     = new ArrayList<>();
+        final ArrayList<int[]>          succ    = new ArrayList<>();
+        final ArrayList<Integer>        target  = new ArrayList<>(); // Address called at a node, or -1
+        final LinkedHashSet<Integer>    callees = new LinkedHashSet<>();
+        long[] cost;
+        long[] calls; // Stack used by the call made at a node, or 0
+        // Scratch space for longest
+        int[] mark, order, low, comp, edge, callStack, tarjanStack;
+        boolean[] onStack;
+        int stamps;
+
+        Graph(Routine routine)
+        {
+            this.routine = routine;
+            ArrayDeque<Integer> work = new ArrayDeque<>();
+            add(routine.entry, work);
+            while (!work.isEmpty())
+            {
+                int pc = work.poll();
+                Instruction instruction = instructions[pc];
+                if (instruction == null)
+                {
+                    routine.fail(String.format("Jump to 0x%04X, which is not an instruction", pc));
+                    return;
+                }
+                int next = (pc + instruction.size) & 0xFFFF;
+                int[] successors;
+                int i = index.get(pc);
+                switch (instruction.type)
+                {
+                    case SJMP:
+                    case AJMP:
+                    case LJMP:
+                        int jump = getTarget(pc, instruction);
+                        successors = jump == pc ? new int[0] : new int[]{add(jump, work)}; // Jump to self = halt
+                        break;
+                    case JMP:
+                        routine.fail(String.format("Indirect jump at 0x%04X", pc));
+                        return;
+                    case JC:
+                    case JNC:
+                    case JZ:
+                    case JNZ:
+                    case JB:
+                    case JNB:
+                    case JBC:
+                    case CJNE:
+                    case DJNZ:
+                        successors = new int[]{add(next, work), add(getTarget(pc, instruction), work)};
+                        break;
+                    case RET:
+                    case RETI:
+                        successors = new int[0];
+                        break;
+                    case ACALL:
+                    case LCALL:
+                        int call = getTarget(pc, instruction);
+                        target.set(i, call);
+                        callees.add(call);
+                        successors = new int[]{add(next, work)};
+                        break;
+                    default:
+                        successors = new int[]{add(next, work)};
+                }
+                succ.set(i, successors);
+            }
+        }
+
+        /**
+         * All callees must be done, except the ones that (indirectly) call this routine.
+         */
+        void analyze()
+        {
+            compute();
+            int[] all = new int[pcs.size()];
+            for (int i = 0; i < all.length; i++) all[i] = i;
+            routine.writes = writes(all, -1);
+            routine.done = true;
+            for (int pc : pcs) if (pc != routine.entry) reached.set(pc);
+        }
+
+        private void compute()
+        {
+            if (routine.note != null) return;
+            final int n = pcs.size();
+            cost = new long[n];
+            calls = new long[n];
+            for (int i = 0; i < n; i++)
+            {
+                cost[i] = instructions[pcs.get(i)].cycles;
+                if (target.get(i) == -1) continue;
+                Routine callee = routines.get(target.get(i));
+                if (!callee.done)
+                {
+                    routine.fail(String.format("Recursive call to 0x%04X at 0x%04X", callee.entry, pcs.get(i)));
+                    return;
+                }
+                if (callee.cycles == UNBOUNDED)
+                {
+                    routine.fail(String.format("Calls 0x%04X at 0x%04X, which is unbounded", callee.entry, pcs.get(i)));
+                    return;
+                }
+                cost[i] += callee.cycles;
+                calls[i] = callee.stack == UNBOUNDED ? UNBOUNDED : 2 + callee.stack;
+            }
+
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) all[i] = i;
+            mark = new int[n];
+            order = new int[n];
+            low = new int[n];
+            comp = new int[n];
+            edge = new int[n];
+            callStack = new int[n];
+            tarjanStack = new int[n];
+            onStack = new boolean[n];
+            routine.cycles = longest(all, 0, -1);
+            if (routine.cycles == UNBOUNDED) return;
+            routine.stack = stack();
+        }
+
+        int add(int pc, ArrayDeque<Integer> work)
+        {
+            Integer i = index.get(pc);
+            if (i != null) return i;
+            index.put(pc, pcs.size());
+            pcs.add(pc);
+            succ.add(new int[0]);
+            target.add(-1);
+            work.add(pc);
+            return pcs.size() - 1;
+        }
+
+        /**
+         * Longest path from entry through the given nodes. Edges into ignore are left out (the back edges of the loop being costed).
+         * Loops are collapsed into one node that costs bound * the longest iteration.
+         * The scratch arrays are shared with nested calls, so everything needed from them is copied out before recursing.
+         */
+        long longest(int[] nodes, int entry, int ignore)
+        {
+            final int stamp = ++stamps;
+            for (int v : nodes)
+            {
+                mark[v] = stamp;
+                order[v] = -1;
+                edge[v] = 0;
+            }
+            // Iterative Tarjan, components come out in reverse topological order
+            int counter = 0, components = 0, sp = 0, tsp = 0;
+            callStack[sp++] = entry;
+            while (sp > 0)
+            {
+                int v = callStack[sp - 1];
+                if (order[v] == -1)
+                {
+                    order[v] = low[v] = counter++;
+                    tarjanStack[tsp++] = v;
+                    onStack[v] = true;
+                }
+                if (edge[v] < succ.get(v).length)
+                {
+                    int w = succ.get(v)[edge[v]++];
+                    if (mark[w] != stamp || w == ignore) continue;
+                    if (order[w] == -1) callStack[sp++] = w;
+                    else if (onStack[w]) low[v] = Math.min(low[v], order[w]);
+                }
+                else
+                {
+                    sp--;
+                    if (sp > 0) low[callStack[sp - 1]] = Math.min(low[callStack[sp - 1]], low[v]);
+                    if (low[v] == order[v])
+                    {
+                        int w;
+                        do
+                        {
+                            w = tarjanStack[--tsp];
+                            onStack[w] = false;
+                            comp[w] = components;
+                        }
+                        while (w != v);
+                        components++;
+                    }
+                }
+            }
+
+            // Group the nodes per component, find a single header per component and the edges between components
+            int[] start = new int[components + 1];
+            for (int v : nodes) if (order[v] != -1) start[comp[v] + 1]++;
+            for (int c = 0; c < components; c++) start[c + 1] += start[c];
+            int[] members = new int[counter];
+            int[] fill = Arrays.copyOf(start, components);
+            for (int v : nodes) if (order[v] != -1) members[fill[comp[v]]++] = v;
+            int[] header = new int[components];
+            boolean[] selfLoop = new boolean[components];
+            ArrayList<int[]> edges = new ArrayList<>(); // {from, to} component
+            Arrays.fill(header, -1);
+            header[comp[entry]] = entry;
+            for (int i = 0; i < counter; i++)
+            {
+                int v = members[i];
+                for (int w : succ.get(v))
+                {
+                    if (mark[w] != stamp || w == ignore) continue;
+                    if (w == v) selfLoop[comp[v]] = true;
+                    if (comp[w] != comp[v])
+                    {
+                        edges.add(new int[]{comp[v], comp[w]});
+                        if (header[comp[w]] == -1) header[comp[w]] = w;
+                        else if (header[comp[w]] != w) header[comp[w]] = -2;
+                    }
+                }
+            }
+            final int entryComp = comp[entry];
+
+            long[] compCost = new long[components];
+            for (int c = 0; c < components; c++)
+            {
+                if (start[c + 1] - start[c] == 1 && !selfLoop[c]) compCost[c] = cost[members[start[c]]];
+                else compCost[c] = loop(Arrays.copyOfRange(members, start[c], start[c + 1]), header[c]);
+                if (compCost[c] == UNBOUNDED) return UNBOUNDED;
+            }
+            // Successors always have a lower component number
+            long[] after = new long[components];
+            Collections.sort(edges, new Comparator<int[]>()
+            {
+                @Override
+                public int compare(int[] o1, int[] o2)
+                {
+                    return Integer.compare(o1[1], o2[1]);
+                }
+            });
+            long[] best = new long[components];
+            for (int c = 0, e = 0; c < components; c++)
+            {
+                best[c] = compCost[c] + after[c];
+                for (; e < edges.size() && edges.get(e)[1] == c; e++) after[edges.get(e)[0]] = Math.max(after[edges.get(e)[0]], best[c]);
+            }
+            return best[entryComp];
+        }
+
+        /**
+         * @return bound * longest iteration, or UNBOUNDED
+         */
+        long loop(int[] members, int header)
+        {
+            if (header < 0)
+            {
+                routine.fail("Loop with more than one entry");
+                return UNBOUNDED;
+            }
+            long bound = 0;
+            for (int v : members)
+            {
+                for (int w : succ.get(v))
+                {
+                    if (w != header) continue;
+                    int pc = pcs.get(v);
+                    int count = instructions[pc].type == Instruction.Type.DJNZ ? getBound(pc, pcs.get(header)) : -1;
+                    if (count == -1)
+                    {
+                        routine.fail(String.format("Unbounded loop at 0x%04X", pcs.get(header)));
+                        return UNBOUNDED;
+                    }
+                    if (writes(members, v).changesCounter(image[pc], image[(pc + 1) & 0xFFFF]))
+                    {
+                        routine.fail(String.format("Unbounded loop at 0x%04X, the counter of the DJNZ at 0x%04X may be changed in the loop", pcs.get(header), pc));
+                        return UNBOUNDED;
+                    }
+                    bound += count;
+                }
+            }
+            long iteration = longest(members, header, header);
+            return iteration == UNBOUNDED ? UNBOUNDED : bound * iteration;
+        }
+
+        /**
+         * Look back from the loop header, in straight line code, for the MOV that sets the counter of the DJNZ at pc.
+         *
+         * @return the amount of iterations, or -1
+         */
+        int getBound(int pc, int header)
+        {
+            int opcode = image[pc];
+            int cur = header;
+            for (int steps = 0; steps < 8; steps++)
+            {
+                int prev = -1;
+                for (int back = 1; back <= 3; back++)
+                {
+                    int p = (cur - back) & 0xFFFF;
+                    if (instructions[p] != null && ((p + instructions[p].size) & 0xFFFF) == cur) prev = p;
+                }
+                if (prev == -1) return -1;
+                int prevOpcode = image[prev];
+                int value = -1;
+                if (opcode >= 0xD8 && prevOpcode == 0x78 + (opcode - 0xD8)) value = image[prev + 1]; // DJNZ Rn / MOV Rn, #k
+                if (opcode == 0xD5 && prevOpcode == 0x75 && image[prev + 1] == image[pc + 1]) value = image[prev + 2]; // DJNZ direct / MOV direct, #k
+                if (value != -1) return value == 0 ? 256 : value;
+                switch (instructions[prev].type)
+                {
+                    case SJMP:
+                    case AJMP:
+                    case LJMP:
+                    case JMP:
+                    case RET:
+                    case RETI:
+                        return -1;
+                }
+                cur = prev;
+            }
+            return -1;
+        }
+
+        /**
+         * @param skip a node to leave out (the DJNZ of the loop itself), or -1
+         */
+        Writes writes(int[] nodes, int skip)
+        {
+            Writes writes = new Writes();
+            for (int v : nodes)
+            {
+                if (v == skip) continue;
+                addWrites(pcs.get(v), writes);
+                if (target.get(v) == -1) continue;
+                Routine callee = routines.get(target.get(v));
+                if (callee.writes != null) writes.add(callee.writes); // Null only when recursive, that fails anyway
+            }
+            return writes;
+        }
+
+        /**
+         * Stack depth at every instruction, following PUSH and POP.
+         */
+        long stack()
+        {
+            final int n = pcs.size();
+            int[] depth = new int[n];
+            Arrays.fill(depth, Integer.MIN_VALUE);
+            depth[0] = 0;
+            ArrayDeque<Integer> work = new ArrayDeque<>();
+            work.add(0);
+            long max = 0;
+            while (!work.isEmpty())
+            {
+                int v = work.poll();
+                int d = depth[v];
+                Instruction.Type type = instructions[pcs.get(v)].type;
+                int after = type == Instruction.Type.PUSH ? d + 1 : type == Instruction.Type.POP ? d - 1 : d;
+                if (calls[v] == UNBOUNDED)
+                {
+                    routine.failStack(String.format("Calls 0x%04X at 0x%04X, which has unbounded stack use", target.get(v), pcs.get(v)));
+                    return UNBOUNDED;
+                }
+                max = Math.max(max, Math.max(after, d + calls[v]));
+                if (max > MAX_STACK)
+                {
+                    routine.failStack(String.format("Stack use exceeds %d bytes at 0x%04X", MAX_STACK, pcs.get(v)));
+                    return UNBOUNDED;
+                }
+                for (int w : succ.get(v))
+                {
+                    if (depth[w] < after)
+                    {
+                        depth[w] = after;
+                        work.add(w);
+                    }
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -73,12 +73,15 @@ public class Bytes extends Component
                     i.remove();
 
                     SrcComponent pre = new SrcComponent(component.getSrcLine(), src.substring(0, matcher.start()));
+                    pre.setIncluded(component.isIncluded());
                     if (pre.shouldAdd()) i.add(pre);
 
                     Bytes bytes = new Bytes(pre.getSrcLine(), matcher, type);
+                    bytes.setIncluded(pre.isIncluded());
                     i.add(bytes);
 
                     SrcComponent post = new SrcComponent(pre.getSrcLine(), src.substring(matcher.end()));
+                    post.setIncluded(pre.isIncluded());
                     if (post.shouldAdd()) i.add(post);
                 }
             }
@@ -145,7 +148,7 @@ public class Bytes extends Component
         }
     }
 
-    private static enum Type
+    public static enum Type
     {
         DB(Constants.DB), DW(Constants.DW), DS(Constants.DS);
 
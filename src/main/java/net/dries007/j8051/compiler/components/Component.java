@@ -47,6 +47,7 @@ public abstract class Component
     protected int[]   data;
     private   int     srcLine;
     private   boolean resolved;
+    private   boolean included;
 
     protected Component(int srcLine)
     {
@@ -90,4 +91,17 @@ public abstract class Component
     {
         this.srcLine = srcLine;
     }
+
+    /**
+     * @return true if this came from an include file, the source line is then counted in that file
+     */
+    public boolean isIncluded()
+    {
+        return included;
+    }
+
+    public void setIncluded(boolean included)
+    {
+        this.included = included;
+    }
 }
@@ -47,6 +47,10 @@ public class InstructionComponent extends Component
 {
     public final Instruction.Type type;
     public       Instruction      instruction;
+    /**
+     * Only for generic JMP / CALL, see {@link Instruction#GENERIC_INSTRUCTIONS}
+     */
+    public       Instruction[]    candidates;
     private      Object[]         objects;
 
     private InstructionComponent(int srcLine, Matcher matcher, Instruction.Type type)
@@ -80,6 +84,17 @@ public class InstructionComponent extends Component
                             break;
                         }
                     }
+                    Instruction[] candidates = Instruction.GENERIC_INSTRUCTIONS.get(instructionComponent.type);
+                    if (instructionComponent.instruction == null && candidates != null && arguments.length == 1)
+                    {
+                        String target = arguments[0];
+                        if (instructionComponent.matches(symbols, candidates[0], arguments))
+                        {
+                            instructionComponent.candidates = candidates;
+                            instructionComponent.objects[0] = target; // Always evaluate, a number is an address here, not an offset
+                            i.remove();
+                        }
+                    }
                 }
             }
             prev = current;
@@ -103,18 +118,53 @@ public class InstructionComponent extends Component
                     i.remove();
 
                     SrcComponent pre = new SrcComponent(component.getSrcLine(), src.substring(0, matcher.start()));
+                    pre.setIncluded(component.isIncluded());
                     if (pre.shouldAdd()) i.add(pre);
 
                     InstructionComponent instructionComponent = new InstructionComponent(pre.getSrcLine(), matcher, type);
+                    instructionComponent.setIncluded(pre.isIncluded());
                     i.add(instructionComponent);
 
                     SrcComponent post = new SrcComponent(pre.getSrcLine(), src.substring(matcher.end()));
+                    post.setIncluded(pre.isIncluded());
                     if (post.shouldAdd()) i.add(post);
                 }
             }
         }
     }
 
+    /**
+     * @return the value of an argument: the text for fixed arguments (A, R0, ...) and unresolved symbols, otherwise an Integer
+     */
+    public Object getArgument(int i)
+    {
+        return objects[i];
+    }
+
+    /**
+     * Used for relocatable output, to put a placeholder in fields that are filled in by the linker.
+     */
+    public void setArgument(int i, Object value)
+    {
+        objects[i] = value;
+    }
+
+    /**
+     * @return the arguments, evaluated if possible, otherwise the expression. Null for instructions without arguments.
+     */
+    public Object[] getArguments()
+    {
+        return objects;
+    }
+
+    /**
+     * @return the jump target expression of a generic JMP / CALL
+     */
+    public String getTarget()
+    {
+        return (String) objects[0];
+    }
+
     @Override
     public String toString()
     {
@@ -60,6 +60,18 @@ public class Symbol extends Component
         this.key = matcher.groupCount() >= 1 ? matcher.group(1) : null;
     }
 
+    /**
+     * For symbols loaded from a precompiled header
+     */
+    public Symbol(int srcLine, String key, Type type, Integer intValue, String stringValue)
+    {
+        super(srcLine);
+        this.key = key;
+        this.type = type;
+        this.intValue = intValue;
+        this.stringValue = stringValue;
+    }
+
     public Symbol()
     {
         super(-1);
@@ -84,9 +96,11 @@ public class Symbol extends Component
                     i.remove();
 
                     SrcComponent pre = new SrcComponent(component.getSrcLine(), src.substring(0, matcher.start()));
+                    pre.setIncluded(component.isIncluded());
                     if (pre.shouldAdd()) i.add(pre);
 
                     Symbol symbol = new Symbol(pre.getSrcLine(), matcher, type);
+                    symbol.setIncluded(pre.isIncluded());
                     if (symbol.key != null)
                     {
                         if (symbols.containsKey(symbol.key.toLowerCase())) throw new SymbolAlreadyDefinedException(symbol, symbol.toString());
@@ -94,6 +108,7 @@ public class Symbol extends Component
                     }
                     i.add(symbol);
                     SrcComponent post = new SrcComponent(pre.getSrcLine(), src.substring(matcher.end()));
+                    post.setIncluded(pre.isIncluded());
                     if (post.shouldAdd()) i.add(post);
                 }
             }
@@ -32,6 +32,7 @@
 package net.dries007.j8051.gui;
 
 import net.dries007.j8051.compiler.Parser;
+import net.dries007.j8051.compiler.TimingAnalyzer;
 import net.dries007.j8051.util.Helper;
 import net.dries007.j8051.util.exceptions.CompileException;
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
@@ -42,6 +43,7 @@ import org.fife.ui.rtextarea.RTextScrollPane;
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
+import java.util.HashMap;
 
 import static net.dries007.j8051.gui.MainGui.MAIN_GUI;
 import static net.dries007.j8051.util.Constants.*;
@@ -51,7 +53,13 @@ import static net.dries007.j8051.util.Constants.*;
  */
 class CompileRunnable implements Runnable
 {
-    public boolean running;
+    private static final String INCLUDE_TEXT = "includeText";
+
+    public  boolean                          running;
+    /**
+     * The include tabs of the last compile, reused if the text (from the IncludeCache) is the same object
+     */
+    private HashMap<String, RTextScrollPane> includePanes = new HashMap<>();
 
     @Override
     public void run()
@@ -64,6 +72,8 @@ class CompileRunnable implements Runnable
             MAIN_GUI.status.setText("Compiling...");
             System.gc();
             final Parser parser = new Parser(MAIN_GUI.asmContents.getText());
+            parser.optimize = Boolean.parseBoolean(PROPERTIES.getProperty(OPTIMIZE, "false"));
+            parser.strip = Boolean.parseBoolean(PROPERTIES.getProperty(STRIP, "false"));
             while (parser.hasWork())
             {
                 parser.doWork();
@@ -73,6 +83,7 @@ class CompileRunnable implements Runnable
                     case PREPROCESSOR:
                         MAIN_GUI.preText.setText(parser.postPre);
                         MAIN_GUI.includeFiles.removeAll();
+                        HashMap<String, RTextScrollPane> panes = new HashMap<>();
                         for (String file : parser.includeFiles.keySet())
                         {
                             GridBagConstraints gbc = new GridBagConstraints();
@@ -81,21 +92,28 @@ class CompileRunnable implements Runnable
                             gbc.weightx = 1.0;
                             gbc.weighty = 1.0;
                             gbc.fill = GridBagConstraints.BOTH;
-                            RTextScrollPane rTextScrollPane1 = new RTextScrollPane();
-                            rTextScrollPane1.setName(file);
-                            rTextScrollPane1.setBorder(BorderFactory.createTitledBorder("Source"));
-                            RSyntaxTextArea text = new RSyntaxTextArea(parser.includeFiles.get(file));
-                            TextLineNumber tln = new TextLineNumber(text);
-                            rTextScrollPane1.setRowHeaderView(tln);
-                            text.setFadeCurrentLineHighlight(false);
-                            text.setTabsEmulated(false);
-                            text.setEditable(false);
-                            text.setTabSize(Integer.parseInt(PROPERTIES.getProperty(TABSIZE, "4")));
-                            text.setFont(MAIN_GUI.fontChooser.getSelectedFont());
-                            text.setSyntaxEditingStyle(SYNTAX_NAME);
-                            rTextScrollPane1.setViewportView(text);
+                            RTextScrollPane rTextScrollPane1 = includePanes.get(file);
+                            if (rTextScrollPane1 == null || rTextScrollPane1.getClientProperty(INCLUDE_TEXT) != parser.includeFiles.get(file) || !rTextScrollPane1.getTextArea().getFont().equals(MAIN_GUI.fontChooser.getSelectedFont()))
+                            {
+                                rTextScrollPane1 = new RTextScrollPane();
+                                rTextScrollPane1.setName(file);
+                                rTextScrollPane1.setBorder(BorderFactory.createTitledBorder("Source"));
+                                RSyntaxTextArea text = new RSyntaxTextArea(parser.includeFiles.get(file));
+                                TextLineNumber tln = new TextLineNumber(text);
+                                rTextScrollPane1.setRowHeaderView(tln);
+                                text.setFadeCurrentLineHighlight(false);
+                                text.setTabsEmulated(false);
+                                text.setEditable(false);
+                                text.setTabSize(Integer.parseInt(PROPERTIES.getProperty(TABSIZE, "4")));
+                                text.setFont(MAIN_GUI.fontChooser.getSelectedFont());
+                                text.setSyntaxEditingStyle(SYNTAX_NAME);
+                                rTextScrollPane1.setViewportView(text);
+                                rTextScrollPane1.putClientProperty(INCLUDE_TEXT, parser.includeFiles.get(file));
+                            }
+                            panes.put(file, rTextScrollPane1);
                             MAIN_GUI.includeFiles.add(rTextScrollPane1, gbc);
                         }
+                        includePanes = panes;
                         break;
                     case MAKE_HEX:
                         MAIN_GUI.hexTable.setModel(new DefaultTableModel(parser.getHexTable(), new String[]{"Address    ", "0x.0", "0x.1", "0x.2", "0x.3", "0x.4", "0x.5", "0x.6", "0x.7", "0x.8", "0x.9", "0x.A", "0x.B", "0x.C", "0x.D", "0x.E", "0x.F"})
@@ -108,6 +126,16 @@ class CompileRunnable implements Runnable
                         });
                         MAIN_GUI.resizeColumnWidth(MAIN_GUI.hexTable);
                         MAIN_GUI.hexTable.updateUI();
+                        MAIN_GUI.timingTable.setModel(new DefaultTableModel(new TimingAnalyzer(parser.components).getReport(parser.symbols), new String[]{"Label", "Address", "Cycles", "Stack", "Note"})
+                        {
+                            @Override
+                            public boolean isCellEditable(int row, int column)
+                            {
+                                return false;
+                            }
+                        });
+                        MAIN_GUI.resizeColumnWidth(MAIN_GUI.timingTable);
+                        Debugger.DEBUGGER.setParser(parser);
                         break;
                     default:
                         MAIN_GUI.symbolHashMap = parser.symbols;
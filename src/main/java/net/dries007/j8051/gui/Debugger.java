@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.gui;
+
+import net.dries007.j8051.compiler.Parser;
+import net.dries007.j8051.simulator.Breakpoints;
+import net.dries007.j8051.simulator.Profiler;
+import net.dries007.j8051.simulator.Simulator;
+import net.dries007.j8051.simulator.Snapshot;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.text.BadLocationException;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import static net.dries007.j8051.gui.MainGui.MAIN_GUI;
+
+/**
+ * Runs the last successfully compiled program in the simulator.
+ * Checkpoints are snapshots of the machine, they stay valid until the next compile.
+ *
+ * @author Dries007
+ */
+class Debugger
+{
+    public static final Debugger DEBUGGER = new Debugger();
+
+    /**
+     * Upper limit for one run, so an endless loop doesn't keep the simulator busy forever.
+     */
+    private static final long MAX_CYCLES = 100000000L;
+
+    private final ArrayList<Snapshot> checkpoints = new ArrayList<>();
+    private Parser    parser;
+    private Simulator simulator;
+    private boolean   running;
+
+    private Debugger()
+    {
+    }
+
+    public void setParser(Parser parser)
+    {
+        this.parser = parser;
+        this.simulator = null;
+        checkpoints.clear();
+    }
+
+    public void reset()
+    {
+        if (running) return;
+        simulator = null;
+        show(null);
+    }
+
+    public void step()
+    {
+        if (running || !init()) return;
+        try
+        {
+            simulator.step();
+            show(null);
+        }
+        catch (Exception e)
+        {
+            show(e.getMessage());
+        }
+    }
+
+    public void stepBack()
+    {
+        if (running || !init()) return;
+        show(simulator.stepBack() ? null : "No history left");
+    }
+
+    public void run(final boolean backwards)
+    {
+        if (running || !init()) return;
+        running = true;
+        MAIN_GUI.status.setText(backwards ? "Running backwards..." : "Running...");
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    setBreakpoints();
+                    boolean hit = backwards ? simulator.runBack() : simulator.run(MAX_CYCLES);
+                    show(hit ? getHitMessage() : backwards ? "No history left" : "Cycle limit reached");
+                }
+                catch (Exception e)
+                {
+                    show(e.getMessage());
+                }
+                finally
+                {
+                    running = false;
+                }
+            }
+        }, "Debugger").start();
+    }
+
+    public void checkpoint()
+    {
+        if (running || !init()) return;
+        checkpoints.add(simulator.snapshot());
+        show(String.format("Checkpoint %d taken", checkpoints.size()));
+    }
+
+    /**
+     * @param branch false to rewind this machine to the checkpoint. True to keep the current state as a new checkpoint
+     *               and continue on a new machine (with its own profile) that starts at the chosen one.
+     */
+    public void restore(boolean branch)
+    {
+        if (running || !init()) return;
+        Snapshot snapshot = chooseCheckpoint(branch ? "Branch from checkpoint" : "Restore checkpoint");
+        if (snapshot == null) return;
+        if (branch)
+        {
+            checkpoints.add(simulator.snapshot());
+            simulator = new Simulator(snapshot);
+            simulator.profiler = new Profiler();
+            show(String.format("Branched, the previous state is checkpoint %d", checkpoints.size()));
+        }
+        else
+        {
+            simulator.restore(snapshot);
+            show("Checkpoint restored");
+        }
+    }
+
+    /**
+     * @return null if there are none or the user cancelled
+     */
+    private Snapshot chooseCheckpoint(String title)
+    {
+        if (checkpoints.isEmpty())
+        {
+            MAIN_GUI.status.setText("No checkpoints, take one first.");
+            return null;
+        }
+        String[] names = new String[checkpoints.size()];
+        for (int i = 0; i < names.length; i++) names[i] = String.format("%d: PC 0x%04X, cycle %d", i + 1, checkpoints.get(i).pc, checkpoints.get(i).cycles);
+        Object choice = JOptionPane.showInputDialog(MAIN_GUI.frame, "Checkpoint", title, JOptionPane.QUESTION_MESSAGE, null, names, names[names.length - 1]);
+        for (int i = 0; i < names.length; i++) if (names[i].equals(choice)) return checkpoints.get(i);
+        return null;
+    }
+
+    private boolean init()
+    {
+        if (parser == null)
+        {
+            MAIN_GUI.status.setText("Nothing to simulate, compile first.");
+            return false;
+        }
+        if (simulator == null)
+        {
+            simulator = new Simulator();
+            simulator.profiler = new Profiler();
+            simulator.load(parser.components);
+        }
+        return true;
+    }
+
+    private void setBreakpoints()
+    {
+        simulator.breakpoints.clear(Breakpoints.CODE);
+        BitSet lines = MAIN_GUI.asmContentsLines.getBreakpoints();
+        for (int line = lines.nextSetBit(0); line >= 0; line = lines.nextSetBit(line + 1))
+        {
+            int address = parser.getAddress(line);
+            if (address != -1) simulator.breakpoints.set(Breakpoints.CODE, address, true);
+        }
+    }
+
+    private void showProfile()
+    {
+        MAIN_GUI.asmContentsLines.setHeat(simulator.profiler.getLineCycles(parser.components, MAIN_GUI.asmContents.getLineCount()));
+        MAIN_GUI.profilerTable.setModel(new DefaultTableModel(simulator.profiler.getHotspots(parser.components), new String[]{"Line", "Address", "Instruction", "Hits", "Cycles", "%"})
+        {
+            @Override
+            public boolean isCellEditable(int row, int column)
+            {
+                return false;
+            }
+        });
+        MAIN_GUI.resizeColumnWidth(MAIN_GUI.profilerTable);
+    }
+
+    private String getHitMessage()
+    {
+        switch (simulator.breakpoints.hitKind)
+        {
+            case Breakpoints.CODE:
+                return "Breakpoint";
+            case Breakpoints.IRAM_READ:
+                return String.format("IRAM read 0x%02X", simulator.breakpoints.hitAddress);
+            case Breakpoints.IRAM_WRITE:
+                return String.format("IRAM write 0x%02X", simulator.breakpoints.hitAddress);
+            case Breakpoints.SFR_READ:
+                return String.format("SFR read 0x%02X", simulator.breakpoints.hitAddress);
+            case Breakpoints.SFR_WRITE:
+                return String.format("SFR write 0x%02X", simulator.breakpoints.hitAddress);
+            case Breakpoints.XRAM_READ:
+                return String.format("XRAM read 0x%04X", simulator.breakpoints.hitAddress);
+            case Breakpoints.XRAM_WRITE:
+                return String.format("XRAM write 0x%04X", simulator.breakpoints.hitAddress);
+        }
+        return null;
+    }
+
+    private void show(String message)
+    {
+        if (simulator == null)
+        {
+            MAIN_GUI.status.setText("Simulator reset");
+            MAIN_GUI.asmContentsLines.setHeat(null);
+            MAIN_GUI.profilerTable.setModel(new DefaultTableModel());
+            return;
+        }
+        StringBuilder status = new StringBuilder();
+        if (message != null) status.append(message).append(" | ");
+        status.append(String.format("PC 0x%04X A 0x%02X B 0x%02X PSW 0x%02X SP 0x%02X DPTR 0x%04X Cycles %d", simulator.pc, simulator.readDirect(Simulator.ACC), simulator.readDirect(Simulator.B), simulator.readDirect(Simulator.PSW), simulator.readDirect(Simulator.SP), simulator.getDptr(), simulator.cycles));
+        MAIN_GUI.status.setText(status.toString());
+        showProfile();
+        int line = parser.getSrcLine(simulator.pc);
+        if (line == -1) return;
+        try
+        {
+            MAIN_GUI.asmContents.setCaretPosition(MAIN_GUI.asmContents.getLineStartOffset(line));
+        }
+        catch (BadLocationException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
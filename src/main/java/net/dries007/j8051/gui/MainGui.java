@@ -59,6 +59,7 @@ import static javax.swing.JFileChooser.DIRECTORIES_ONLY;
 import static javax.swing.WindowConstants.EXIT_ON_CLOSE;
 import static net.dries007.j8051.gui.AsmDocumentListener.DOCUMENT_LISTENER;
 import static net.dries007.j8051.gui.AsmParser.ASM_PARSER;
+import static net.dries007.j8051.gui.Debugger.DEBUGGER;
 import static net.dries007.j8051.gui.FindAndReplace.FIND_AND_REPLACE;
 import static net.dries007.j8051.util.Constants.*;
 
@@ -98,6 +99,8 @@ public class MainGui
     public       JComboBox<Uploader>  deviceTypeBox;
     public       JCheckBoxMenuItem    autoSave;
     public       JCheckBoxMenuItem    autoCompile;
+    public       JCheckBoxMenuItem    optimize;
+    public       JCheckBoxMenuItem    strip;
     public       JMenuItem            includeFolder;
     public       JRadioButtonMenuItem encodingDefault;
     public       JRadioButtonMenuItem encodingUtf8;
@@ -105,6 +108,17 @@ public class MainGui
     public       JMenuItem            uploadCommand;
     public       JMenuItem            newFile;
     public       JMenuItem            about;
+    public       JMenuItem            debugReset;
+    public       JMenuItem            debugStep;
+    public       JMenuItem            debugStepBack;
+    public       JMenuItem            debugRun;
+    public       JMenuItem            debugRunBack;
+    public       JMenuItem            debugCheckpoint;
+    public       JMenuItem            debugRestore;
+    public       JMenuItem            debugBranch;
+    public       TextLineNumber       asmContentsLines;
+    public       JTable               profilerTable;
+    public       JTable               timingTable;
 
     public HashMap<String, Symbol> symbolHashMap;
 
@@ -125,16 +139,22 @@ public class MainGui
         asmContents.setTabSize(Integer.parseInt(PROPERTIES.getProperty(TABSIZE, "4")));
         asmContents.setFont(fontChooser.getSelectedFont());
         asmContents.setSyntaxEditingStyle(SYNTAX_NAME);
-        TextLineNumber tln = new TextLineNumber(asmContents);
-        asmContentsScroll.setRowHeaderView(tln);
+        asmContentsLines = new TextLineNumber(asmContents);
+        asmContentsLines.enableBreakpoints();
+        asmContentsScroll.setRowHeaderView(asmContentsLines);
         asmContents.addParser(ASM_PARSER);
 
         preText.setTabSize(Integer.parseInt(PROPERTIES.getProperty(TABSIZE, "4")));
         preText.setFont(fontChooser.getSelectedFont());
         preText.setSyntaxEditingStyle(SYNTAX_NAME);
-        tln = new TextLineNumber(preText);
+        TextLineNumber tln = new TextLineNumber(preText);
         preTextScroll.setRowHeaderView(tln);
 
+        profilerTable = new JTable();
+        tabPane.addTab("Profiler", new JScrollPane(profilerTable));
+        timingTable = new JTable();
+        tabPane.addTab("Timing", new JScrollPane(timingTable));
+
         componentsTable.setDefaultRenderer(Object.class, new FluoCellRenderer()
         {
             @Override
@@ -302,6 +322,24 @@ public class MainGui
                 saveProperties();
             }
         });
+        optimize.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                PROPERTIES.setProperty(OPTIMIZE, Boolean.toString(optimize.getState()));
+                saveProperties();
+            }
+        });
+        strip.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                PROPERTIES.setProperty(STRIP, Boolean.toString(strip.getState()));
+                saveProperties();
+            }
+        });
         autoSave.addActionListener(new ActionListener()
         {
             @Override
@@ -444,6 +482,70 @@ public class MainGui
                 }
             }
         });
+        debugReset.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                DEBUGGER.reset();
+            }
+        });
+        debugStep.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                DEBUGGER.step();
+            }
+        });
+        debugStepBack.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                DEBUGGER.stepBack();
+            }
+        });
+        debugRun.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                DEBUGGER.run(false);
+            }
+        });
+        debugRunBack.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                DEBUGGER.run(true);
+            }
+        });
+        debugCheckpoint.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                DEBUGGER.checkpoint();
+            }
+        });
+        debugRestore.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                DEBUGGER.restore(false);
+            }
+        });
+        debugBranch.addActionListener(new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                DEBUGGER.restore(true);
+            }
+        });
         comPortBox.setModel(new DefaultComboBoxModel<>(Uploader.getAvailableComPorts()));
         baudRateBox.setModel(new DefaultComboBoxModel<>(new Integer[]{9600, 19200, 57600, 115200}));
         deviceTypeBox.setModel(new DefaultComboBoxModel<>(Uploader.getAvailableTypes()));
@@ -624,8 +726,56 @@ public class MainGui
         autoCompile.setState(parseBoolean(PROPERTIES.getProperty(AUTO_COMPILE, "true")));
         optionsMenu.add(autoCompile);
 
+        optimize = new JCheckBoxMenuItem("Peephole optimize");
+        optimize.setState(parseBoolean(PROPERTIES.getProperty(OPTIMIZE, "false")));
+        optionsMenu.add(optimize);
+
+        strip = new JCheckBoxMenuItem("Strip unused code");
+        strip.setState(parseBoolean(PROPERTIES.getProperty(STRIP, "false")));
+        optionsMenu.add(strip);
+
         menuBar.add(optionsMenu);
 
+        //  Debugmenu
+        JMenu debugMenu = new JMenu("Debug");
+
+        debugRun = new JMenuItem("Run");
+        debugRun.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F8, 0));
+        debugMenu.add(debugRun);
+
+        debugStep = new JMenuItem("Step");
+        debugStep.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F7, 0));
+        debugMenu.add(debugStep);
+
+        debugMenu.addSeparator();
+
+        debugRunBack = new JMenuItem("Run backwards");
+        debugRunBack.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F8, KeyEvent.SHIFT_DOWN_MASK));
+        debugMenu.add(debugRunBack);
+
+        debugStepBack = new JMenuItem("Step back");
+        debugStepBack.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F7, KeyEvent.SHIFT_DOWN_MASK));
+        debugMenu.add(debugStepBack);
+
+        debugMenu.addSeparator();
+
+        debugCheckpoint = new JMenuItem("Take checkpoint");
+        debugCheckpoint.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F9, 0));
+        debugMenu.add(debugCheckpoint);
+
+        debugRestore = new JMenuItem("Restore checkpoint...");
+        debugMenu.add(debugRestore);
+
+        debugBranch = new JMenuItem("Branch from checkpoint...");
+        debugMenu.add(debugBranch);
+
+        debugMenu.addSeparator();
+
+        debugReset = new JMenuItem("Reset");
+        debugMenu.add(debugReset);
+
+        menuBar.add(debugMenu);
+
         // Helpmenu
         JMenu helpMenu = new JMenu("Help");
 
@@ -11,8 +11,11 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.util.BitSet;
 import java.util.HashMap;
 
 /**
@@ -33,6 +36,8 @@ public class TextLineNumber extends JPanel
 
     private final static Border OUTER = new MatteBorder(0, 0, 0, 2, Color.GRAY);
 
+    private final static Color BREAKPOINT = new Color(0xFF, 0x80, 0x80);
+
     private final static int HEIGHT = Integer.MAX_VALUE - 1000000;
 
     //  Text component this TextTextLineNumber component is in sync with
@@ -56,6 +61,15 @@ public class TextLineNumber extends JPanel
 
     private HashMap<String, FontMetrics> fonts;
 
+    //  Lines (0 based) with a breakpoint, toggled by clicking the line number
+
+    private final BitSet breakpoints = new BitSet();
+
+    //  Value per line (0 based) used to color the background, eg profiler cycles
+
+    private long[] heat;
+    private long   maxHeat;
+
     /**
      * Create a line number component for a text component. This minimum
      * display width will be based on 3 digits.
@@ -90,6 +104,47 @@ public class TextLineNumber extends JPanel
         component.addPropertyChangeListener("font", this);
     }
 
+    /**
+     * Allow toggling breakpoints by clicking on a line number.
+     */
+    public void enableBreakpoints()
+    {
+        addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mouseClicked(MouseEvent e)
+            {
+                Element root = component.getDocument().getDefaultRootElement();
+                breakpoints.flip(root.getElementIndex(component.viewToModel(new Point(0, e.getY()))));
+                repaint();
+            }
+        });
+    }
+
+    /**
+     * Set the heat per line. The background of each line is colored
+     * relative to the hottest line.
+     *
+     * @param heat the value per 0 based line index, or null to disable
+     */
+    public void setHeat(long[] heat)
+    {
+        this.heat = heat;
+        maxHeat = 0;
+        if (heat != null) for (long value : heat) maxHeat = Math.max(maxHeat, value);
+        repaint();
+    }
+
+    /**
+     * Gets the lines that have a breakpoint
+     *
+     * @return the 0 based line indexes
+     */
+    public BitSet getBreakpoints()
+    {
+        return breakpoints;
+    }
+
     /**
      * Gets the update font property
      *
@@ -270,6 +325,7 @@ public class TextLineNumber extends JPanel
                 int stringWidth = fontMetrics.stringWidth(lineNumber);
                 int x = getOffsetX(availableWidth, stringWidth) + insets.left;
                 int y = getOffsetY(rowStartOffset, fontMetrics);
+                paintBackground(g, rowStartOffset);
                 g.drawString(lineNumber, x, y);
 
                 //  Move to the next row
@@ -283,6 +339,24 @@ public class TextLineNumber extends JPanel
         }
     }
 
+    /*
+     *  Lines with a breakpoint or heat get a colored background
+     */
+    private void paintBackground(Graphics g, int rowStartOffset) throws BadLocationException
+    {
+        Element root = component.getDocument().getDefaultRootElement();
+        int line = root.getElementIndex(rowStartOffset);
+        Color background;
+        if (breakpoints.get(line)) background = BREAKPOINT;
+        else if (heat != null && line < heat.length && heat[line] != 0) background = new Color(0xFF, 0xFF - (int) (0xC0 * heat[line] / maxHeat), 0x40);
+        else return;
+        Rectangle r = component.modelToView(rowStartOffset);
+        Color color = g.getColor();
+        g.setColor(background);
+        g.fillRect(0, r.y, getWidth() - OUTER.getBorderInsets(this).right, r.height);
+        g.setColor(color);
+    }
+
     /*
      *  We need to know if the caret is currently positioned on the line we
      *  are about to paint so the line number can be highlighted.
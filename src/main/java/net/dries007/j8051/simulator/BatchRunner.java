@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.util.Helper;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static net.dries007.j8051.util.Constants.*;
+
+/**
+ * Runs one assembled program against many stimulus files, in parallel.
+ * All runs branch off the same snapshot, so the code image is shared and never copied.
+ * <p/>
+ * Stimulus file, one command per line, numbers in assembler notation:
+ * <pre>
+ * iram|sfr|xram address byte...   Write bytes before running
+ * pc address                      Start address
+ * cycles count                    Cycle limit (default 10M)
+ * dump iram|sfr|xram|code address length    Add memory to the result
+ * </pre>
+ * The program runs until it reaches SJMP $ or the cycle limit.
+ * Every result is printed as one JSON object per line, in the order of the input files.
+ * If a trace folder is set, every run also records a binary trace there, named after the stimulus file.
+ * If coverage is set, the executed addresses of all runs are merged into it.
+ *
+ * @author Dries007
+ */
+public class BatchRunner
+{
+    public static final long DEFAULT_MAX_CYCLES = 10000000L;
+
+    private static final String[] SPACES = {"iram", "sfr", "xram", "code"};
+
+    private final Snapshot image;
+    private final int      threads;
+    private File     traceFolder;
+    private Coverage coverage;
+
+    public BatchRunner(List<Component> components, int threads)
+    {
+        Simulator simulator = new Simulator();
+        simulator.history = null;
+        simulator.load(components);
+        this.image = simulator.snapshot();
+        this.threads = threads;
+    }
+
+    /**
+     * @param traceFolder null to disable tracing
+     */
+    public void setTraceFolder(File traceFolder)
+    {
+        this.traceFolder = traceFolder;
+    }
+
+    /**
+     * @param coverage null to disable coverage
+     */
+    public void setCoverage(Coverage coverage)
+    {
+        this.coverage = coverage;
+    }
+
+    public static List<File> getVectors(File file)
+    {
+        ArrayList<File> files = new ArrayList<>();
+        if (file.isDirectory())
+        {
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                Arrays.sort(children);
+                for (File child : children) if (child.isFile()) files.add(child);
+            }
+        }
+        else files.add(file);
+        return files;
+    }
+
+    public void run(List<File> vectors, PrintStream out) throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            ArrayList<Future<String>> results = new ArrayList<>(vectors.size());
+            for (final File vector : vectors)
+            {
+                results.add(executor.submit(new Callable<String>()
+                {
+                    @Override
+                    public String call() throws Exception
+                    {
+                        return run(vector);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++)
+            {
+                try
+                {
+                    out.println(results.get(i).get());
+                }
+                catch (ExecutionException e)
+                {
+                    out.printf("{\"vector\":\"%s\",\"error\":\"%s\"}%n", escape(vectors.get(i).getPath()), escape(String.valueOf(e.getCause().getMessage())));
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private String run(File vector) throws IOException
+    {
+        Simulator simulator = new Simulator(image, null);
+        long maxCycles = DEFAULT_MAX_CYCLES;
+        ArrayList<int[]> dumps = new ArrayList<>();
+
+        @SuppressWarnings("unchecked")
+        List<String> lines = FileUtils.readLines(vector, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT));
+        for (int lineNr = 0; lineNr < lines.size(); lineNr++)
+        {
+            String line = lines.get(lineNr);
+            int comment = line.indexOf(PREFIX_COMMENT);
+            if (comment != -1) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            String[] split = line.split("\\s+");
+            try
+            {
+                switch (split[0].toLowerCase())
+                {
+                    case "iram":
+                        for (int i = 2; i < split.length; i++) simulator.writeIndirect(Helper.parseToInt(split[1]) + i - 2, Helper.parseToInt(split[i]));
+                        break;
+                    case "sfr":
+                        for (int i = 2; i < split.length; i++) simulator.writeDirect(Helper.parseToInt(split[1]) + i - 2, Helper.parseToInt(split[i]));
+                        break;
+                    case "xram":
+                        for (int i = 2; i < split.length; i++) simulator.writeXram(Helper.parseToInt(split[1]) + i - 2, Helper.parseToInt(split[i]));
+                        break;
+                    case "pc":
+                        simulator.pc = Helper.parseToInt(split[1]) & 0xFFFF;
+                        break;
+                    case "cycles":
+                        maxCycles = Long.parseLong(split[1]);
+                        break;
+                    case "dump":
+                        dumps.add(new int[]{getSpace(split[1]), Helper.parseToInt(split[2]), Helper.parseToInt(split[3])});
+                        break;
+                    default:
+                        throw new IOException("Unknown command: " + split[0]);
+                }
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+            {
+                throw new IOException(vector.getName() + ":" + (lineNr + 1) + " Invalid command: " + line, e);
+            }
+            catch (IOException e)
+            {
+                throw new IOException(vector.getName() + ":" + (lineNr + 1) + " " + e.getMessage(), e);
+            }
+        }
+
+        if (coverage != null) simulator.coverage = new Coverage();
+        if (traceFolder != null)
+        {
+            try (TraceWriter trace = new TraceWriter(new File(traceFolder, vector.getName()), TraceWriter.DEFAULT_SEGMENT_RECORDS))
+            {
+                simulator.trace = trace;
+                while (simulator.cycles < maxCycles && !simulator.isHalted()) simulator.step();
+            }
+            simulator.trace = null;
+        }
+        else while (simulator.cycles < maxCycles && !simulator.isHalted()) simulator.step();
+        if (coverage != null)
+        {
+            // The SJMP $ we stopped on counts as executed
+            if (simulator.isHalted()) simulator.coverage.mark(simulator.pc);
+            coverage.merge(simulator.coverage);
+        }
+
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"vector\":\"").append(escape(vector.getPath())).append('"');
+        json.append(",\"halted\":").append(simulator.isHalted());
+        json.append(",\"cycles\":").append(simulator.cycles);
+        json.append(",\"pc\":").append(simulator.pc);
+        json.append(",\"a\":").append(simulator.readDirect(Simulator.ACC));
+        json.append(",\"b\":").append(simulator.readDirect(Simulator.B));
+        json.append(",\"psw\":").append(simulator.readDirect(Simulator.PSW));
+        json.append(",\"sp\":").append(simulator.readDirect(Simulator.SP));
+        json.append(",\"dptr\":").append(simulator.getDptr());
+        json.append(",\"dumps\":[");
+        for (int i = 0; i < dumps.size(); i++)
+        {
+            int[] dump = dumps.get(i);
+            if (i != 0) json.append(',');
+            json.append("{\"space\":\"").append(SPACES[dump[0]]).append("\",\"address\":").append(dump[1]).append(",\"data\":[");
+            for (int j = 0; j < dump[2]; j++)
+            {
+                if (j != 0) json.append(',');
+                json.append(read(simulator, dump[0], dump[1] + j));
+            }
+            json.append("]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static int getSpace(String name) throws IOException
+    {
+        for (int i = 0; i < SPACES.length; i++) if (SPACES[i].equalsIgnoreCase(name)) return i;
+        throw new IOException("Unknown memory: " + name);
+    }
+
+    private static int read(Simulator simulator, int space, int address)
+    {
+        switch (space)
+        {
+            case 0:
+                return simulator.iram.read(address & 0xFF);
+            case 1:
+                return simulator.sfr.read(address & 0xFF);
+            case 2:
+                return simulator.xram.read(address & 0xFFFF);
+            default:
+                return simulator.code.read(address & 0xFFFF);
+        }
+    }
+
+    private static String escape(String string)
+    {
+        return string.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
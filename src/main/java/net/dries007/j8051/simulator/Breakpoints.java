@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+import java.util.Arrays;
+
+/**
+ * Code breakpoints and memory watchpoints, one bit per address.
+ * The simulator tests the matching bit on every access, so there is no cost besides that when nothing is set.
+ *
+ * @author Dries007
+ */
+public class Breakpoints
+{
+    public static final int CODE       = 0;
+    public static final int IRAM_READ  = 1;
+    public static final int IRAM_WRITE = 2;
+    public static final int SFR_READ   = 3;
+    public static final int SFR_WRITE  = 4;
+    public static final int XRAM_READ  = 5;
+    public static final int XRAM_WRITE = 6;
+
+    final long[] code      = new long[Simulator.CODE_SIZE >>> 6];
+    final long[] iramRead  = new long[Simulator.IRAM_SIZE >>> 6];
+    final long[] iramWrite = new long[Simulator.IRAM_SIZE >>> 6];
+    final long[] sfrRead   = new long[Simulator.IRAM_SIZE >>> 6];
+    final long[] sfrWrite  = new long[Simulator.IRAM_SIZE >>> 6];
+    final long[] xramRead  = new long[Simulator.XRAM_SIZE >>> 6];
+    final long[] xramWrite = new long[Simulator.XRAM_SIZE >>> 6];
+    private final long[][] bitmaps = {code, iramRead, iramWrite, sfrRead, sfrWrite, xramRead, xramWrite};
+
+    /**
+     * Kind and address of the last hit, -1 if nothing was hit since the last reset.
+     */
+    public int hitKind    = -1;
+    public int hitAddress = -1;
+
+    public void set(int kind, int address, boolean enabled)
+    {
+        if (enabled) bitmaps[kind][address >>> 6] |= 1L << address;
+        else bitmaps[kind][address >>> 6] &= ~(1L << address);
+    }
+
+    public boolean get(int kind, int address)
+    {
+        return (bitmaps[kind][address >>> 6] & (1L << address)) != 0;
+    }
+
+    public void clear(int kind)
+    {
+        Arrays.fill(bitmaps[kind], 0L);
+    }
+
+    void hit(int kind, int address)
+    {
+        hitKind = kind;
+        hitAddress = address;
+    }
+
+    void reset()
+    {
+        hitKind = -1;
+        hitAddress = -1;
+    }
+
+    public boolean isHit()
+    {
+        return hitKind != -1;
+    }
+}
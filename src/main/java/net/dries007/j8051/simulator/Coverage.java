@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.compiler.components.InstructionComponent;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One bit per code address, set when an instruction starts there.
+ * Runs are combined by OR-ing the bitmaps, 8 KiB per run.
+ *
+ * @author Dries007
+ */
+public class Coverage
+{
+    public final long[] bits = new long[Simulator.CODE_SIZE >>> 6];
+
+    public void clear()
+    {
+        Arrays.fill(bits, 0L);
+    }
+
+    public void mark(int address)
+    {
+        bits[(address & 0xFFFF) >>> 6] |= 1L << address;
+    }
+
+    public boolean isCovered(int address)
+    {
+        return (bits[(address & 0xFFFF) >>> 6] & (1L << address)) != 0;
+    }
+
+    /**
+     * Thread safe, so parallel runs can merge into the same total.
+     */
+    public synchronized void merge(Coverage other)
+    {
+        for (int i = 0; i < bits.length; i++) bits[i] |= other.bits[i];
+    }
+
+    /**
+     * Print every source line, prefixed by its coverage, followed by a summary.
+     * '+' all instructions on the line executed, '-' none, '~' some. Lines without instructions get no mark.
+     * Code from include files only counts in the summary.
+     */
+    public void printReport(List<Component> components, List<String> lines, PrintStream out)
+    {
+        final int[] total = new int[lines.size()];
+        final int[] covered = new int[lines.size()];
+        final int[] address = new int[lines.size()];
+        Arrays.fill(address, -1);
+        int instructions = 0, instructionsCovered = 0, bytes = 0, bytesCovered = 0;
+        for (Component component : components)
+        {
+            if (!(component instanceof InstructionComponent)) continue;
+            boolean hit = isCovered(component.address);
+            instructions++;
+            bytes += component.getData().length;
+            if (hit)
+            {
+                instructionsCovered++;
+                bytesCovered += component.getData().length;
+            }
+            if (component.isIncluded()) continue; // Its line is counted in the include file, not in this listing
+            int line = component.getSrcLine();
+            if (line < 0 || line >= lines.size()) continue;
+            total[line]++;
+            if (hit) covered[line]++;
+            if (address[line] == -1) address[line] = component.address;
+        }
+
+        int codeLines = 0, linesCovered = 0;
+        for (int i = 0; i < lines.size(); i++)
+        {
+            if (total[i] == 0)
+            {
+                out.printf("%6d         %s%n", i + 1, lines.get(i));
+                continue;
+            }
+            codeLines++;
+            char mark = covered[i] == total[i] ? '+' : covered[i] == 0 ? '-' : '~';
+            if (mark == '+') linesCovered++;
+            out.printf("%6d %c %04X  %s%n", i + 1, mark, address[i], lines.get(i));
+        }
+
+        out.println();
+        out.printf("Lines:        %6d / %6d  %6.2f%%%n", linesCovered, codeLines, percent(linesCovered, codeLines));
+        out.printf("Instructions: %6d / %6d  %6.2f%%%n", instructionsCovered, instructions, percent(instructionsCovered, instructions));
+        out.printf("Bytes:        %6d / %6d  %6.2f%%%n", bytesCovered, bytes, percent(bytesCovered, bytes));
+    }
+
+    private static double percent(int part, int total)
+    {
+        return total == 0 ? 100.0 : 100.0 * part / total;
+    }
+}
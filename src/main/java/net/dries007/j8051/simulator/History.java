@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+/**
+ * Fixed size ring buffer of the state changes made by each instruction, used to step backwards.
+ * Every instruction adds a mark (PC + cycles) followed by the old value of every byte it wrote.
+ * When full, the oldest instructions are dropped as a whole.
+ * <p/>
+ * Entry layout: bits 24-31 = space, bits 8-23 = address (or PC), bits 0-7 = old value (or cycles).
+ *
+ * @author Dries007
+ */
+public class History
+{
+    public static final int DEFAULT_CAPACITY = 0x10000;
+
+    public static final int MARK = 0;
+    public static final int IRAM = 1;
+    public static final int SFR  = 2;
+    public static final int XRAM = 3;
+
+    private final int[] entries;
+    private int head;
+    private int tail;
+    private int size;
+
+    public History(int capacity)
+    {
+        entries = new int[capacity];
+    }
+
+    public void mark(int pc, int cycles)
+    {
+        add((pc << 8) | cycles);
+    }
+
+    public void add(int space, int address, int old)
+    {
+        add((space << 24) | (address << 8) | old);
+    }
+
+    private void add(int entry)
+    {
+        if (size == entries.length) dropOldest();
+        entries[head] = entry;
+        head = head + 1 == entries.length ? 0 : head + 1;
+        size++;
+    }
+
+    /**
+     * Drops the oldest mark and its deltas, so the buffer always starts with a complete instruction.
+     */
+    private void dropOldest()
+    {
+        do
+        {
+            tail = tail + 1 == entries.length ? 0 : tail + 1;
+            size--;
+        }
+        while (size != 0 && entries[tail] >>> 24 != MARK);
+    }
+
+    /**
+     * Undo the last instruction
+     *
+     * @return false if there is no history left
+     */
+    public boolean undo(Simulator simulator)
+    {
+        if (size == 0) return false;
+        final Breakpoints breakpoints = simulator.breakpoints;
+        int entry;
+        do
+        {
+            head = head == 0 ? entries.length - 1 : head - 1;
+            size--;
+            entry = entries[head];
+            final int address = (entry >>> 8) & 0xFFFF;
+            switch (entry >>> 24)
+            {
+                case IRAM:
+                    if ((breakpoints.iramWrite[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.IRAM_WRITE, address);
+                    simulator.iram.write(address, entry & 0xFF);
+                    break;
+                case SFR:
+                    if ((breakpoints.sfrWrite[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.SFR_WRITE, address);
+                    simulator.sfr.write(address, entry & 0xFF);
+                    break;
+                case XRAM:
+                    if ((breakpoints.xramWrite[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.XRAM_WRITE, address);
+                    simulator.xram.write(address, entry & 0xFF);
+                    break;
+            }
+        }
+        while (entry >>> 24 != MARK);
+        simulator.pc = (entry >>> 8) & 0xFFFF;
+        simulator.cycles -= entry & 0xFF;
+        return true;
+    }
+
+    public void clear()
+    {
+        head = tail = size = 0;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public int getCapacity()
+    {
+        return entries.length;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+/**
+ * Byte addressable memory, split in pages that are shared copy-on-write between snapshots.
+ * Pages that were never written are not allocated and read as 0x00.
+ *
+ * @author Dries007
+ */
+public class Memory
+{
+    public static final int PAGE_BITS = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    public final int size;
+    private final byte[][]  pages;
+    private final boolean[] shared;
+
+    public Memory(int size)
+    {
+        this.size = size;
+        this.pages = new byte[(size + PAGE_MASK) >>> PAGE_BITS][];
+        this.shared = new boolean[pages.length];
+    }
+
+    private Memory(Memory other)
+    {
+        this.size = other.size;
+        this.pages = other.pages.clone();
+        this.shared = new boolean[pages.length];
+        for (int i = 0; i < pages.length; i++)
+        {
+            if (pages[i] == null) continue;
+            shared[i] = true;
+            other.shared[i] = true;
+        }
+    }
+
+    public int read(int address)
+    {
+        byte[] page = pages[address >>> PAGE_BITS];
+        return page == null ? 0 : page[address & PAGE_MASK] & 0xFF;
+    }
+
+    public void write(int address, int value)
+    {
+        final int pageNr = address >>> PAGE_BITS;
+        byte[] page = pages[pageNr];
+        if (page == null) page = pages[pageNr] = new byte[PAGE_SIZE];
+        else if (shared[pageNr])
+        {
+            page = pages[pageNr] = page.clone();
+            shared[pageNr] = false;
+        }
+        page[address & PAGE_MASK] = (byte) value;
+    }
+
+    public void write(int address, int[] data)
+    {
+        for (int i = 0; i < data.length; i++) write(address + i, data[i]);
+    }
+
+    /**
+     * Only the page table is copied, the pages themselves are copied when either side writes to them.
+     */
+    public Memory snapshot()
+    {
+        return new Memory(this);
+    }
+
+    /**
+     * @return the amount of pages that are allocated and not shared with any other snapshot
+     */
+    public int getOwnedPages()
+    {
+        int count = 0;
+        for (int i = 0; i < pages.length; i++) if (pages[i] != null && !shared[i]) count++;
+        return count;
+    }
+}
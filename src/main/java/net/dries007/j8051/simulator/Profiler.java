@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+import net.dries007.j8051.compiler.components.Component;
+import net.dries007.j8051.compiler.components.InstructionComponent;
+
+import java.util.*;
+
+/**
+ * Execution count and machine cycles spent per code address.
+ *
+ * @author Dries007
+ */
+public class Profiler
+{
+    public final long[] hits   = new long[Simulator.CODE_SIZE];
+    public final long[] cycles = new long[Simulator.CODE_SIZE];
+
+    public void clear()
+    {
+        Arrays.fill(hits, 0L);
+        Arrays.fill(cycles, 0L);
+    }
+
+    public long getTotalCycles()
+    {
+        long total = 0;
+        for (long cycle : cycles) total += cycle;
+        return total;
+    }
+
+    /**
+     * @return cycles spent per source line of the main file, indexed by line
+     */
+    public long[] getLineCycles(List<Component> components, int lines)
+    {
+        long[] lineCycles = new long[lines];
+        for (Component component : components)
+        {
+            if (component.isIncluded() || component.getSrcLine() < 0 || component.getSrcLine() >= lines) continue;
+            lineCycles[component.getSrcLine()] += getCycles(component);
+        }
+        return lineCycles;
+    }
+
+    /**
+     * @return Line, Address, Instruction, Hits, Cycles, % of total. Sorted by cycles, only components that were executed.
+     * The line of code from an include file is "include", its line number would point into the main file.
+     */
+    public Object[][] getHotspots(List<Component> components)
+    {
+        final long total = getTotalCycles();
+        ArrayList<Object[]> data = new ArrayList<>();
+        for (Component component : components)
+        {
+            long componentCycles = getCycles(component);
+            if (componentCycles == 0) continue;
+            long componentHits = hits[component.address];
+            Object name = component instanceof InstructionComponent ? ((InstructionComponent) component).instruction : component.getClass().getSimpleName();
+            Object line = component.isIncluded() ? "include" : component.getSrcLine();
+            data.add(new Object[]{line, String.format("0x%04X", component.address), name, componentHits, componentCycles, String.format("%.2f", 100.0 * componentCycles / total)});
+        }
+        Collections.sort(data, new Comparator<Object[]>()
+        {
+            @Override
+            public int compare(Object[] o1, Object[] o2)
+            {
+                return Long.compare((Long) o2[4], (Long) o1[4]);
+            }
+        });
+        return data.toArray(new Object[data.size()][]);
+    }
+
+    private long getCycles(Component component)
+    {
+        if (component.getData() == null) return 0;
+        long total = 0;
+        for (int i = 0; i < component.getData().length; i++) total += cycles[(component.address + i) & 0xFFFF];
+        return total;
+    }
+}
@@ -0,0 +1,702 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+import net.dries007.j8051.compiler.Instruction;
+import net.dries007.j8051.compiler.Instruction.Argument;
+import net.dries007.j8051.compiler.Instruction.Type;
+import net.dries007.j8051.compiler.components.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Instruction level 8051 simulator.
+ * All memory accesses go through the read* / write* methods, so the whole machine state is the 4 memories + PC.
+ *
+ * @author Dries007
+ */
+public class Simulator
+{
+    public static final int CODE_SIZE = 0x10000;
+    public static final int XRAM_SIZE = 0x10000;
+    public static final int IRAM_SIZE = 0x100;
+
+    public static final int P0  = 0x80;
+    public static final int SP  = 0x81;
+    public static final int DPL = 0x82;
+    public static final int DPH = 0x83;
+    public static final int P1  = 0x90;
+    public static final int P2  = 0xA0;
+    public static final int P3  = 0xB0;
+    public static final int PSW = 0xD0;
+    public static final int ACC = 0xE0;
+    public static final int B   = 0xF0;
+
+    public static final int PSW_CY = 0x80;
+    public static final int PSW_AC = 0x40;
+    public static final int PSW_RS = 0x18;
+    public static final int PSW_OV = 0x04;
+    public static final int PSW_P  = 0x01;
+
+    public Memory code;
+    public Memory xram;
+    public Memory iram;
+    public Memory sfr;
+    public int    pc;
+    public long   cycles;
+    /**
+     * Set to null to disable recording (and stepping back)
+     */
+    public History history;
+    public final Breakpoints breakpoints = new Breakpoints();
+    /**
+     * Set to enable profiling
+     */
+    public Profiler profiler;
+    /**
+     * Set to record a binary trace, the caller closes it
+     */
+    public TraceWriter trace;
+    /**
+     * Set to record which addresses were executed
+     */
+    public Coverage    coverage;
+
+    private final int[] operands = new int[3];
+
+    public Simulator()
+    {
+        history = new History(History.DEFAULT_CAPACITY);
+        code = new Memory(CODE_SIZE);
+        reset();
+    }
+
+    /**
+     * Branch a new machine of a snapshot. The snapshot itself is never modified.
+     */
+    public Simulator(Snapshot snapshot)
+    {
+        this(snapshot, new History(History.DEFAULT_CAPACITY));
+    }
+
+    /**
+     * @param history null to disable recording
+     */
+    public Simulator(Snapshot snapshot, History history)
+    {
+        this.history = history;
+        restore(snapshot);
+    }
+
+    public void reset()
+    {
+        xram = new Memory(XRAM_SIZE);
+        iram = new Memory(IRAM_SIZE);
+        sfr = new Memory(IRAM_SIZE);
+        sfr.write(SP, 0x07);
+        sfr.write(P0, 0xFF);
+        sfr.write(P1, 0xFF);
+        sfr.write(P2, 0xFF);
+        sfr.write(P3, 0xFF);
+        pc = 0;
+        cycles = 0;
+        if (history != null) history.clear();
+    }
+
+    public Snapshot snapshot()
+    {
+        return new Snapshot(this);
+    }
+
+    public void restore(Snapshot snapshot)
+    {
+        code = snapshot.code.snapshot();
+        xram = snapshot.xram.snapshot();
+        iram = snapshot.iram.snapshot();
+        sfr = snapshot.sfr.snapshot();
+        pc = snapshot.pc;
+        cycles = snapshot.cycles;
+        if (history != null) history.clear();
+    }
+
+    public void load(List<Component> components)
+    {
+        for (Component component : components) if (component.getData() != null) code.write(component.address, component.getData());
+    }
+
+    public void loadHex(List<String> lines) throws IOException
+    {
+        for (String line : lines)
+        {
+            if (line.length() == 0 || line.charAt(0) != ':') continue;
+            int type = Integer.parseInt(line.substring(7, 9), 16);
+            if (type != 0) break;
+            int length = Integer.parseInt(line.substring(1, 3), 16);
+            int address = Integer.parseInt(line.substring(3, 7), 16);
+            int sum = length + (address & 0xFF) + (address >>> 8);
+            for (int i = 0; i < length; i++)
+            {
+                int bt = Integer.parseInt(line.substring(9 + 2 * i, 11 + 2 * i), 16);
+                code.write(address + i, bt);
+                sum += bt;
+            }
+            if (Integer.parseInt(line.substring(9 + 2 * length, 11 + 2 * length), 16) != (((~sum) + 1) & 0xFF)) throw new IOException("Checksum error in hex file!");
+        }
+    }
+
+    /**
+     * @return true if a breakpoint or watchpoint was hit
+     */
+    public boolean run(long maxCycles)
+    {
+        final long end = cycles + maxCycles;
+        breakpoints.reset();
+        while (cycles < end)
+        {
+            step();
+            if (breakpoints.hitKind != -1) return true;
+            if ((breakpoints.code[pc >>> 6] & (1L << pc)) != 0)
+            {
+                breakpoints.hit(Breakpoints.CODE, pc);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the PC is on a jump to itself (SJMP $), the usual way to end a program
+     */
+    public boolean isHalted()
+    {
+        return code.read(pc) == 0x80 && code.read((pc + 1) & 0xFFFF) == 0xFE;
+    }
+
+    /**
+     * Undo the last instruction
+     *
+     * @return false if there is no history left
+     */
+    public boolean stepBack()
+    {
+        return history != null && history.undo(this);
+    }
+
+    /**
+     * Step backwards until a breakpoint, an instruction that wrote to a write watchpoint or the end of the history.
+     *
+     * @return true if a breakpoint or watchpoint was hit
+     */
+    public boolean runBack()
+    {
+        breakpoints.reset();
+        while (stepBack())
+        {
+            if (breakpoints.hitKind != -1) return true;
+            if ((breakpoints.code[pc >>> 6] & (1L << pc)) != 0)
+            {
+                breakpoints.hit(Breakpoints.CODE, pc);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Execute one instruction
+     *
+     * @return the amount of machine cycles used
+     */
+    public int step()
+    {
+        final int opcode = code.read(pc);
+        final Instruction instruction = Instruction.INSTRUCTIONS[opcode];
+        final Argument[] arguments = instruction.arguments;
+        final int next = (pc + instruction.size) & 0xFFFF;
+        if (history != null) history.mark(pc, instruction.cycles);
+        if (profiler != null)
+        {
+            profiler.hits[pc]++;
+            profiler.cycles[pc] += instruction.cycles;
+        }
+        if (coverage != null) coverage.bits[pc >>> 6] |= 1L << pc;
+        if (trace != null) trace.instruction(cycles, pc, opcode, code.read((pc + 1) & 0xFFFF), code.read((pc + 2) & 0xFFFF));
+
+        int datai = 1;
+        for (int i = 0; i < arguments.length; i++)
+        {
+            if (arguments[i].bytesAdded == 0) operands[i] = 0;
+            else if (arguments[i].bytesAdded == 1) operands[i] = code.read((pc + datai++) & 0xFFFF);
+            else
+            {
+                operands[i] = (code.read((pc + datai) & 0xFFFF) << 8) | code.read((pc + datai + 1) & 0xFFFF);
+                datai += 2;
+            }
+        }
+        if (instruction.reverseOperands) // Because of 0x85
+        {
+            int swap = operands[0];
+            operands[0] = operands[1];
+            operands[1] = swap;
+        }
+
+        pc = next;
+        final int last = arguments.length - 1;
+        int a, b, result, psw;
+        switch (instruction.type)
+        {
+            case NOP:
+                break;
+            case AJMP:
+            case LJMP:
+            case SJMP:
+                pc = getTarget(opcode, next, arguments[0], operands[0]);
+                break;
+            case JMP:
+                pc = (readDirect(ACC) + getDptr()) & 0xFFFF;
+                break;
+            case ACALL:
+            case LCALL:
+                push(next & 0xFF);
+                push(next >>> 8);
+                pc = getTarget(opcode, next, arguments[0], operands[0]);
+                break;
+            case RET:
+            case RETI:
+                pc = pop() << 8;
+                pc |= pop();
+                break;
+            case INC:
+                if (arguments[0] == Argument.DPTR) setDptr(getDptr() + 1);
+                else write(arguments[0], operands[0], read(arguments[0], operands[0]) + 1);
+                break;
+            case DEC:
+                write(arguments[0], operands[0], read(arguments[0], operands[0]) - 1);
+                break;
+            case ADD:
+            case ADDC:
+            {
+                a = readDirect(ACC);
+                b = read(arguments[1], operands[1]);
+                int c = instruction.type == Type.ADDC ? getCarry() : 0;
+                result = a + b + c;
+                psw = readDirect(PSW) & ~(PSW_CY | PSW_AC | PSW_OV);
+                if (result > 0xFF) psw |= PSW_CY;
+                if ((a & 0xF) + (b & 0xF) + c > 0xF) psw |= PSW_AC;
+                if (((a ^ result) & (b ^ result) & 0x80) != 0) psw |= PSW_OV;
+                writeDirect(PSW, psw);
+                writeDirect(ACC, result);
+                break;
+            }
+            case SUBB:
+            {
+                a = readDirect(ACC);
+                b = read(arguments[1], operands[1]);
+                int c = getCarry();
+                result = a - b - c;
+                psw = readDirect(PSW) & ~(PSW_CY | PSW_AC | PSW_OV);
+                if (result < 0) psw |= PSW_CY;
+                if ((a & 0xF) - (b & 0xF) - c < 0) psw |= PSW_AC;
+                if (((a ^ b) & (a ^ result) & 0x80) != 0) psw |= PSW_OV;
+                writeDirect(PSW, psw);
+                writeDirect(ACC, result);
+                break;
+            }
+            case ANL:
+                write(arguments[0], operands[0], read(arguments[0], operands[0]) & read(arguments[1], operands[1]));
+                break;
+            case ORL:
+                write(arguments[0], operands[0], read(arguments[0], operands[0]) | read(arguments[1], operands[1]));
+                break;
+            case XRL:
+                write(arguments[0], operands[0], read(arguments[0], operands[0]) ^ read(arguments[1], operands[1]));
+                break;
+            case JC:
+                if (getCarry() != 0) pc = getTarget(opcode, next, arguments[last], operands[last]);
+                break;
+            case JNC:
+                if (getCarry() == 0) pc = getTarget(opcode, next, arguments[last], operands[last]);
+                break;
+            case JZ:
+                if (readDirect(ACC) == 0) pc = getTarget(opcode, next, arguments[last], operands[last]);
+                break;
+            case JNZ:
+                if (readDirect(ACC) != 0) pc = getTarget(opcode, next, arguments[last], operands[last]);
+                break;
+            case JB:
+                if (readBit(operands[0]) != 0) pc = getTarget(opcode, next, arguments[last], operands[last]);
+                break;
+            case JNB:
+                if (readBit(operands[0]) == 0) pc = getTarget(opcode, next, arguments[last], operands[last]);
+                break;
+            case JBC:
+                if (readBit(operands[0]) != 0)
+                {
+                    writeBit(operands[0], 0);
+                    pc = getTarget(opcode, next, arguments[last], operands[last]);
+                }
+                break;
+            case CJNE:
+                a = read(arguments[0], operands[0]);
+                b = read(arguments[1], operands[1]);
+                setCarry(a < b ? 1 : 0);
+                if (a != b) pc = getTarget(opcode, next, arguments[last], operands[last]);
+                break;
+            case DJNZ:
+                result = (read(arguments[0], operands[0]) - 1) & 0xFF;
+                write(arguments[0], operands[0], result);
+                if (result != 0) pc = getTarget(opcode, next, arguments[last], operands[last]);
+                break;
+            case RR:
+                a = readDirect(ACC);
+                writeDirect(ACC, (a >>> 1) | (a << 7));
+                break;
+            case RL:
+                a = readDirect(ACC);
+                writeDirect(ACC, (a << 1) | (a >>> 7));
+                break;
+            case RRC:
+                a = readDirect(ACC);
+                result = (a >>> 1) | (getCarry() << 7);
+                setCarry(a & 1);
+                writeDirect(ACC, result);
+                break;
+            case RLC:
+                a = readDirect(ACC);
+                result = (a << 1) | getCarry();
+                setCarry(a >>> 7);
+                writeDirect(ACC, result);
+                break;
+            case MOV:
+                if (arguments[0] == Argument.DPTR) setDptr(operands[1]);
+                else write(arguments[0], operands[0], read(arguments[1], operands[1]));
+                break;
+            case MOVC:
+                a = readDirect(ACC);
+                writeDirect(ACC, readCode((a + (arguments[1] == Argument.AT_A_PLUS_DPTR ? getDptr() : next)) & 0xFFFF));
+                break;
+            case MOVX:
+                if (arguments[0] == Argument.A) writeDirect(ACC, readXram(getXramAddress(arguments[1])));
+                else writeXram(getXramAddress(arguments[0]), readDirect(ACC));
+                break;
+            case MUL:
+                result = readDirect(ACC) * readDirect(B);
+                psw = readDirect(PSW) & ~(PSW_CY | PSW_OV);
+                if (result > 0xFF) psw |= PSW_OV;
+                writeDirect(PSW, psw);
+                writeDirect(ACC, result);
+                writeDirect(B, result >>> 8);
+                break;
+            case DIV:
+                a = readDirect(ACC);
+                b = readDirect(B);
+                psw = readDirect(PSW) & ~(PSW_CY | PSW_OV);
+                if (b == 0) psw |= PSW_OV;
+                writeDirect(PSW, psw);
+                if (b != 0)
+                {
+                    writeDirect(ACC, a / b);
+                    writeDirect(B, a % b);
+                }
+                break;
+            case PUSH:
+                push(readDirect(operands[0]));
+                break;
+            case POP:
+                writeDirect(operands[0], pop());
+                break;
+            case CLR:
+                write(arguments[0], operands[0], 0);
+                break;
+            case SETB:
+                write(arguments[0], operands[0], 1);
+                break;
+            case CPL:
+                write(arguments[0], operands[0], arguments[0] == Argument.A ? ~readDirect(ACC) : read(arguments[0], operands[0]) ^ 1);
+                break;
+            case SWAP:
+                a = readDirect(ACC);
+                writeDirect(ACC, (a << 4) | (a >>> 4));
+                break;
+            case XCH:
+                a = readDirect(ACC);
+                writeDirect(ACC, read(arguments[1], operands[1]));
+                write(arguments[1], operands[1], a);
+                break;
+            case XCHD:
+                a = readDirect(ACC);
+                b = read(arguments[1], operands[1]);
+                write(arguments[1], operands[1], (b & 0xF0) | (a & 0x0F));
+                writeDirect(ACC, (a & 0xF0) | (b & 0x0F));
+                break;
+            case DA:
+                a = readDirect(ACC);
+                psw = readDirect(PSW);
+                if ((a & 0x0F) > 9 || (psw & PSW_AC) != 0) a += 0x06;
+                if (a > 0xFF) psw |= PSW_CY;
+                if ((a >>> 4) > 9 || (psw & PSW_CY) != 0) a += 0x60;
+                if (a > 0xFF) psw |= PSW_CY;
+                writeDirect(PSW, psw);
+                writeDirect(ACC, a);
+                break;
+            default:
+                pc = (next - instruction.size) & 0xFFFF;
+                throw new IllegalStateException(String.format("Undefined opcode 0x%02X at 0x%04X", opcode, pc));
+        }
+        cycles += instruction.cycles;
+        return instruction.cycles;
+    }
+
+    private static int getTarget(int opcode, int next, Argument argument, int operand)
+    {
+        switch (argument)
+        {
+            case ADDR11:
+                return (next & 0xF800) | ((opcode & 0xE0) << 3) | operand;
+            case ADDR16:
+                return operand;
+            case REL:
+                return (next + (byte) operand) & 0xFFFF;
+        }
+        throw new IllegalStateException("Not a jump target: " + argument);
+    }
+
+    private int getRegisterAddress(int register)
+    {
+        return (readDirect(PSW) & PSW_RS) | register;
+    }
+
+    private int getXramAddress(Argument argument)
+    {
+        if (argument == Argument.AT_DPTR) return getDptr();
+        return (readDirect(P2) << 8) | readIndirect(getRegisterAddress(argument == Argument.AT_R0 ? 0 : 1));
+    }
+
+    private int read(Argument argument, int operand)
+    {
+        switch (argument)
+        {
+            case A:
+                return readDirect(ACC);
+            case R0:
+            case R1:
+            case R2:
+            case R3:
+            case R4:
+            case R5:
+            case R6:
+            case R7:
+                return readIndirect(getRegisterAddress(argument.ordinal() - Argument.R0.ordinal()));
+            case AT_R0:
+                return readIndirect(readIndirect(getRegisterAddress(0)));
+            case AT_R1:
+                return readIndirect(readIndirect(getRegisterAddress(1)));
+            case DIRECT:
+                return readDirect(operand);
+            case DATA:
+            case DATA16:
+                return operand;
+            case C:
+                return getCarry();
+            case BIT:
+                return readBit(operand);
+            case SLASH_BIT:
+                return readBit(operand) ^ 1;
+        }
+        throw new IllegalStateException("Argument can't be read: " + argument);
+    }
+
+    private void write(Argument argument, int operand, int value)
+    {
+        switch (argument)
+        {
+            case A:
+                writeDirect(ACC, value);
+                return;
+            case R0:
+            case R1:
+            case R2:
+            case R3:
+            case R4:
+            case R5:
+            case R6:
+            case R7:
+                writeIndirect(getRegisterAddress(argument.ordinal() - Argument.R0.ordinal()), value);
+                return;
+            case AT_R0:
+                writeIndirect(readIndirect(getRegisterAddress(0)), value);
+                return;
+            case AT_R1:
+                writeIndirect(readIndirect(getRegisterAddress(1)), value);
+                return;
+            case DIRECT:
+                writeDirect(operand, value);
+                return;
+            case C:
+                setCarry(value);
+                return;
+            case BIT:
+                writeBit(operand, value);
+                return;
+        }
+        throw new IllegalStateException("Argument can't be written: " + argument);
+    }
+
+    private void push(int value)
+    {
+        int sp = (readDirect(SP) + 1) & 0xFF;
+        writeDirect(SP, sp);
+        writeIndirect(sp, value);
+    }
+
+    private int pop()
+    {
+        int sp = readDirect(SP);
+        writeDirect(SP, sp - 1);
+        return readIndirect(sp);
+    }
+
+    public int getCarry()
+    {
+        return readDirect(PSW) >>> 7;
+    }
+
+    public void setCarry(int value)
+    {
+        int psw = readDirect(PSW);
+        writeDirect(PSW, (value & 1) != 0 ? psw | PSW_CY : psw & ~PSW_CY);
+    }
+
+    public int getDptr()
+    {
+        return (readDirect(DPH) << 8) | readDirect(DPL);
+    }
+
+    public void setDptr(int value)
+    {
+        writeDirect(DPH, value >>> 8);
+        writeDirect(DPL, value);
+    }
+
+    public int readCode(int address)
+    {
+        return code.read(address);
+    }
+
+    /**
+     * Lower 128 bytes are IRAM, upper 128 bytes are SFRs
+     */
+    public int readDirect(int address)
+    {
+        if (address < 0x80) return readIndirect(address);
+        if ((breakpoints.sfrRead[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.SFR_READ, address);
+        return sfr.read(address);
+    }
+
+    public void writeDirect(int address, int value)
+    {
+        value &= 0xFF;
+        if (address < 0x80)
+        {
+            writeIndirect(address, value);
+            return;
+        }
+        if (address == ACC || address == PSW)
+        {
+            int acc = address == ACC ? value : sfr.read(ACC);
+            int psw = address == PSW ? value : sfr.read(PSW);
+            psw = (Integer.bitCount(acc) & 1) != 0 ? psw | PSW_P : psw & ~PSW_P;
+            if (address == ACC) writeSfr(ACC, acc);
+            value = psw;
+            address = PSW;
+        }
+        writeSfr(address, value);
+    }
+
+    private void writeSfr(int address, int value)
+    {
+        if ((breakpoints.sfrWrite[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.SFR_WRITE, address);
+        if (history != null) history.add(History.SFR, address, sfr.read(address));
+        if (trace != null) trace.write(cycles, History.SFR, address, sfr.read(address), value);
+        sfr.write(address, value);
+    }
+
+    /**
+     * Indirect addressing (@Ri, stack) always uses the full 256 bytes IRAM
+     */
+    public int readIndirect(int address)
+    {
+        if ((breakpoints.iramRead[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.IRAM_READ, address);
+        return iram.read(address);
+    }
+
+    public void writeIndirect(int address, int value)
+    {
+        if ((breakpoints.iramWrite[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.IRAM_WRITE, address);
+        if (history != null) history.add(History.IRAM, address, iram.read(address));
+        if (trace != null) trace.write(cycles, History.IRAM, address, iram.read(address), value & 0xFF);
+        iram.write(address, value & 0xFF);
+    }
+
+    public int readXram(int address)
+    {
+        if ((breakpoints.xramRead[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.XRAM_READ, address);
+        return xram.read(address);
+    }
+
+    public void writeXram(int address, int value)
+    {
+        address &= 0xFFFF;
+        if ((breakpoints.xramWrite[address >>> 6] & (1L << address)) != 0) breakpoints.hit(Breakpoints.XRAM_WRITE, address);
+        if (history != null) history.add(History.XRAM, address, xram.read(address));
+        if (trace != null) trace.write(cycles, History.XRAM, address, xram.read(address), value & 0xFF);
+        xram.write(address, value & 0xFF);
+    }
+
+    public int readBit(int bit)
+    {
+        return (readDirect(getBitByte(bit)) >>> (bit & 7)) & 1;
+    }
+
+    public void writeBit(int bit, int value)
+    {
+        final int address = getBitByte(bit);
+        final int old = readDirect(address);
+        writeDirect(address, (value & 1) != 0 ? old | (1 << (bit & 7)) : old & ~(1 << (bit & 7)));
+    }
+
+    private static int getBitByte(int bit)
+    {
+        return bit < 0x80 ? 0x20 + (bit >>> 3) : bit & 0xF8;
+    }
+}
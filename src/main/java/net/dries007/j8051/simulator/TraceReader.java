@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+import net.dries007.j8051.compiler.Instruction;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static net.dries007.j8051.simulator.TraceWriter.*;
+
+/**
+ * Reads traces made by {@link TraceWriter}, one segment mapped at a time, so traces can be larger than the heap.
+ * After {@link #next()} returns true, the public fields hold the record.
+ *
+ * @author Dries007
+ */
+public class TraceReader implements Closeable
+{
+    private static final String[] SPACES = {"", "iram", "sfr", "xram"};
+
+    /**
+     * INSTRUCTION or History.IRAM/SFR/XRAM
+     */
+    public int  kind;
+    public long cycle;
+    /**
+     * Instruction records only
+     */
+    public int  pc, opcode, operand1, operand2;
+    /**
+     * Memory records only
+     */
+    public int  address, oldValue, newValue;
+
+    private final File base;
+    private MappedByteBuffer buffer;
+    private int              segment = -1;
+    private long             count;
+    private long             index;
+
+    public TraceReader(File base) throws IOException
+    {
+        this.base = base;
+        if (!open(0)) throw new IOException("No trace found at " + TraceWriter.getSegment(base, 0));
+    }
+
+    /**
+     * @return false at the end of the trace
+     */
+    public boolean next() throws IOException
+    {
+        while (index >= count) if (!open(segment + 1)) return false;
+        int offset = (int) (HEADER_SIZE + index * RECORD_SIZE);
+        index++;
+        kind = buffer.get(offset);
+        cycle = buffer.getLong(offset + 8);
+        if (kind == INSTRUCTION)
+        {
+            opcode = buffer.get(offset + 1) & 0xFF;
+            pc = buffer.getShort(offset + 2) & 0xFFFF;
+            operand1 = buffer.get(offset + 4) & 0xFF;
+            operand2 = buffer.get(offset + 5) & 0xFF;
+        }
+        else
+        {
+            newValue = buffer.get(offset + 1) & 0xFF;
+            address = buffer.getShort(offset + 2) & 0xFFFF;
+            oldValue = buffer.get(offset + 4) & 0xFF;
+        }
+        return true;
+    }
+
+    /**
+     * Position the reader so the next record is the first instruction that started at or after cycle.
+     * Finds the segment via the first record of each segment, then does a binary search inside it.
+     */
+    public void seek(long target) throws IOException
+    {
+        int first = 0;
+        while (open(first + 1) && count != 0 && getCycle(0) <= target) first++;
+        if (!open(first)) throw new IOException("Trace segment " + first + " disappeared.");
+
+        long low = 0, high = count;
+        while (low < high)
+        {
+            long mid = (low + high) >>> 1;
+            if (getCycle(mid) < target) low = mid + 1;
+            else high = mid;
+        }
+        // Memory records share the cycle of their instruction, which comes first, so low is an instruction (or the end).
+        index = low;
+    }
+
+    /**
+     * Print all instructions with a PC in [from, to] and their memory records, starting at cycle.
+     */
+    public void print(PrintStream out, int from, int to, long startCycle) throws IOException
+    {
+        if (startCycle > 0) seek(startCycle);
+        boolean match = false;
+        while (next())
+        {
+            if (kind == INSTRUCTION)
+            {
+                match = pc >= from && pc <= to;
+                if (!match) continue;
+                Instruction instruction = Instruction.INSTRUCTIONS[opcode];
+                out.printf("%12d  0x%04X  %02X", cycle, pc, opcode);
+                if (instruction.size > 1) out.printf(" %02X", operand1);
+                else out.print("   ");
+                if (instruction.size > 2) out.printf(" %02X", operand2);
+                else out.print("   ");
+                out.printf("  %s%n", instruction);
+            }
+            else if (match)
+            {
+                out.printf("%12s  %-4s 0x%04X: 0x%02X -> 0x%02X%n", "", SPACES[kind], address, oldValue, newValue);
+            }
+        }
+    }
+
+    private long getCycle(long record)
+    {
+        return buffer.getLong((int) (HEADER_SIZE + record * RECORD_SIZE + 8));
+    }
+
+    private boolean open(int segment) throws IOException
+    {
+        if (segment == this.segment)
+        {
+            index = 0;
+            return true;
+        }
+        File file = TraceWriter.getSegment(base, segment);
+        if (!file.exists()) return false;
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buffer.getInt(0) != MAGIC) throw new IOException(file + " is not a trace file.");
+        if (buffer.getInt(4) != VERSION) throw new IOException(file + " has an unsupported version.");
+        this.buffer = buffer;
+        this.segment = segment;
+        this.count = buffer.getLong(8);
+        this.index = 0;
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        buffer = null;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.simulator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary instruction trace, written straight into memory mapped segment files.
+ * <p/>
+ * Every segment starts with a header (magic, version, record count) followed by fixed width records of 16 bytes:
+ * <pre>
+ * instruction: kind = 0  | opcode | pc (2) | operand 1 | operand 2 | 0 (2) | cycle (8)
+ * memory:      kind = History.IRAM/SFR/XRAM | new value | address (2) | old value | 0 (3) | cycle (8)
+ * </pre>
+ * Memory records follow the instruction that caused them and carry its (start) cycle, so the cycles never decrease.
+ * An instruction and its memory records never get split over 2 segments.
+ * The record count in the header is updated with every instruction, so a trace is readable even if the program dies.
+ * A segment starts small and grows up to its maximum, so short runs make small files. Segments left over from an
+ * earlier, longer trace with the same base name are deleted when the first segment is made.
+ *
+ * @author Dries007
+ */
+public class TraceWriter implements Closeable
+{
+    public static final int MAGIC                   = 0x4A353154; // J51T
+    public static final int VERSION                 = 1;
+    public static final int HEADER_SIZE             = 16;
+    public static final int RECORD_SIZE             = 16;
+    public static final int INSTRUCTION             = 0;
+    public static final int DEFAULT_SEGMENT_RECORDS = 0x400000; // 64 MiB
+    /**
+     * Records a segment has room for at first, it doubles when full (64 KiB)
+     */
+    private static final int INITIAL_RECORDS         = 0x1000;
+    /**
+     * More than the most records one instruction can make (1 + 4 writes for calls, MUL and DIV)
+     */
+    private static final int MAX_RECORDS_PER_INSTRUCTION = 8;
+
+    private final File base;
+    private final int  segmentRecords;
+    private MappedByteBuffer buffer;
+    private File             file;
+    private int              segment = -1;
+    private int              capacity;
+    private long             count;
+
+    /**
+     * @param base           Segments are named base.0.trace, base.1.trace, ...
+     * @param segmentRecords Maximum amount of records per segment
+     */
+    public TraceWriter(File base, int segmentRecords) throws IOException
+    {
+        if (segmentRecords < MAX_RECORDS_PER_INSTRUCTION) throw new IllegalArgumentException("Segments must hold at least " + MAX_RECORDS_PER_INSTRUCTION + " records.");
+        this.base = base;
+        this.segmentRecords = segmentRecords;
+        nextSegment();
+    }
+
+    public static File getSegment(File base, int segment)
+    {
+        return new File(base.getPath() + '.' + segment + ".trace");
+    }
+
+    public void instruction(long cycle, int pc, int opcode, int operand1, int operand2)
+    {
+        if (count + MAX_RECORDS_PER_INSTRUCTION > capacity)
+        {
+            try
+            {
+                if (capacity < segmentRecords) grow();
+                else nextSegment();
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException("Could not make room in trace segment " + segment, e);
+            }
+        }
+        buffer.put((byte) INSTRUCTION).put((byte) opcode).putShort((short) pc).put((byte) operand1).put((byte) operand2).putShort((short) 0).putLong(cycle);
+        buffer.putLong(8, ++count);
+    }
+
+    /**
+     * Must follow the instruction record. The count in the header gets updated by the next instruction.
+     */
+    public void write(long cycle, int space, int address, int oldValue, int newValue)
+    {
+        buffer.put((byte) space).put((byte) newValue).putShort((short) address).put((byte) oldValue).put((byte) 0).putShort((short) 0).putLong(cycle);
+        count++;
+    }
+
+    private void nextSegment() throws IOException
+    {
+        if (buffer != null) finish();
+        segment++;
+        if (segment == 0)
+        {
+            // The reader goes on until a segment is missing, so it would read on into an older trace
+            for (int old = 1; getSegment(base, old).exists(); old++)
+            {
+                if (!getSegment(base, old).delete()) throw new IOException("Could not delete old trace segment " + getSegment(base, old));
+            }
+        }
+        file = getSegment(base, segment);
+        capacity = Math.min(INITIAL_RECORDS, segmentRecords);
+        // The mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.setLength(0);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        }
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(0);
+        count = 0;
+    }
+
+    /**
+     * Map the same segment again, twice as big. What was written stays, it's the same file.
+     */
+    private void grow() throws IOException
+    {
+        int position = buffer.position();
+        capacity = (int) Math.min((long) capacity * 2, segmentRecords);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        }
+        buffer.position(position);
+    }
+
+    private void finish()
+    {
+        buffer.putLong(8, count);
+        buffer.force();
+    }
+
+    /**
+     * Note: the unused part of the last segment isn't truncated, the header record count is what matters.
+     */
+    @Override
+    public void close()
+    {
+        if (buffer == null) return;
+        finish();
+        buffer = null;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2014, Dries007
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.dries007.j8051.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.dries007.j8051.upload.UploaderXC888.*;
+
+/**
+ * In process stand-in for the XC888 bootstrap loader, on the other end of a virtual serial line.
+ * Use {@link #getInputStream()} and {@link #getOutputStream()} instead of the serial port ones.
+ * <p/>
+ * Timing: every byte takes 10 bit times on the line. flush() blocks until everything written is "sent",
+ * a response becomes readable after the latency plus its own byte time. read() returns -1 until then, like the serial port.
+ * <p/>
+ * Errors: every received byte can get a bit flipped (the loader then answers with a checksum error),
+ * every response can get lost (the uploader times out). Both are random with a fixed seed, so runs are repeatable.
+ * The uploader sends a block again after either, up to {@link UploaderXC888#RETRIES} times.
+ * <p/>
+ * Protocol, as spoken by {@link UploaderXC888}:
+ * <pre>
+ * INIT                                          -> OK
+ * HEADER mode b1 b2 b3 b4 b5 cs                 -> OK / CS_ERROR / FLASH_LOCKED / BLOCK_ERROR
+ *   DL_XRAM, DL_FLASH: b1 b2 = address, b3 = length of the following data blocks (type + length + data + cs)
+ *   EX_XRAM, EX_FLASH: start the program
+ *   ERASE_FLASH: b5 = OPTION_ERASE_ALL erases everything
+ *   PROTECT_FLASH: locks the flash until the next erase all
+ * DATA|EOT length data... cs                    -> OK / CS_ERROR / BLOCK_ERROR, EOT ends the download
+ * </pre>
+ * The checksum is the XOR of all bytes of a block.
+ *
+ * @author Dries007
+ */
+public class LoopbackXC888
+{
+    public static final int FLASH_SIZE = 0x10000;
+    public static final int XRAM_SIZE  = 0x10000;
+    /**
+     * Erased flash reads as 0 on the XC888
+     */
+    public final int[] flash = new int[FLASH_SIZE];
+    public final int[] xram  = new int[XRAM_SIZE];
+    /**
+     * The address the last EX_* command started, -1 if none
+     */
+    public int     executed = -1;
+    public boolean locked;
+
+    /**
+     * Statistics
+     */
+    public long bytesReceived, blocks, corrupted, dropped;
+
+    private final long   byteNanos;
+    private final long   latencyNanos;
+    private final double corruptRate;
+    private final double dropRate;
+    private final Random random;
+
+    private final int[]           block     = new int[0x100];
+    private final ArrayDeque<long[]> responses = new ArrayDeque<>();
+    private int     blockSize;
+    private boolean initialized;
+    private int     mode        = -1;
+    private int     address;
+    private int     blockLength;
+    private long    lineFreeAt;
+
+    /**
+     * @param baudRate    Bits per second, 1 start + 8 data + 1 stop bit per byte
+     * @param latency     Time the loader takes to answer a block, in us
+     * @param corruptRate Chance a received byte gets a bit flipped
+     * @param dropRate    Chance a response gets lost
+     * @param seed        For the error injection
+     */
+    public LoopbackXC888(int baudRate, long latency, double corruptRate, double dropRate, long seed)
+    {
+        this.byteNanos = 10 * 1000000000L / baudRate;
+        this.latencyNanos = latency * 1000;
+        this.corruptRate = corruptRate;
+        this.dropRate = dropRate;
+        this.random = new Random(seed);
+    }
+
+    public InputStream getInputStream()
+    {
+        return new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                synchronized (LoopbackXC888.this)
+                {
+                    long[] response = responses.peek();
+                    if (response == null || response[0] > System.nanoTime()) return -1;
+                    responses.poll();
+                    return (int) response[1];
+                }
+            }
+
+            @Override
+            public int available() throws IOException
+            {
+                synchronized (LoopbackXC888.this)
+                {
+                    long[] response = responses.peek();
+                    return response == null || response[0] > System.nanoTime() ? 0 : 1;
+                }
+            }
+        };
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                synchronized (LoopbackXC888.this)
+                {
+                    lineFreeAt = Math.max(lineFreeAt, System.nanoTime()) + byteNanos;
+                    receive(b & 0xFF);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException
+            {
+                long wait;
+                synchronized (LoopbackXC888.this)
+                {
+                    wait = lineFreeAt - System.nanoTime();
+                }
+                if (wait > 0) LockSupport.parkNanos(wait);
+            }
+        };
+    }
+
+    private void receive(int b)
+    {
+        bytesReceived++;
+        if (random.nextDouble() < corruptRate)
+        {
+            b ^= 1 << random.nextInt(8);
+            corrupted++;
+        }
+        if (!initialized)
+        {
+            // The loader measures the baud rate on the 0x80 and ignores everything else
+            if (b == INIT)
+            {
+                initialized = true;
+                respond(RESPONSE_OK);
+            }
+            return;
+        }
+        if (blockSize == 0)
+        {
+            if (b == TYPE_HEADER) block[0] = b;
+            else if ((b == TYPE_DATA || b == TYPE_EOT) && blockLength != 0) block[0] = b;
+            else
+            {
+                respond(RESPONSE_BLOCK_ERROR);
+                return;
+            }
+        }
+        block[blockSize++] = b;
+        if (blockSize == (block[0] == TYPE_HEADER ? 8 : blockLength))
+        {
+            int length = blockSize;
+            blockSize = 0;
+            blocks++;
+            respond(process(length));
+        }
+    }
+
+    private int process(int length)
+    {
+        int cs = 0;
+        for (int i = 0; i < length - 1; i++) cs ^= block[i];
+        if (cs != block[length - 1]) return RESPONSE_CS_ERROR;
+
+        if (block[0] != TYPE_HEADER)
+        {
+            int[] memory = mode == MODE_DL_FLASH ? flash : xram;
+            for (int i = 2; i < length - 1; i++)
+            {
+                memory[address & 0xFFFF] = block[i];
+                address++;
+            }
+            if (block[0] == TYPE_EOT) blockLength = 0;
+            return RESPONSE_OK;
+        }
+
+        mode = block[1];
+        switch (mode)
+        {
+            case MODE_DL_FLASH:
+            case MODE_DL_XRAM:
+                if (mode == MODE_DL_FLASH && locked) return RESPONSE_FLASH_LOCKED;
+                address = (block[2] << 8) | block[3];
+                blockLength = block[4];
+                if (blockLength < 4 || blockLength > block.length) return RESPONSE_BLOCK_ERROR;
+                return RESPONSE_OK;
+            case MODE_EX_FLASH:
+            case MODE_EX_XRAM:
+                executed = (block[2] << 8) | block[3];
+                return RESPONSE_OK;
+            case MODE_ERASE_FLASH:
+                if (block[6] != OPTION_ERASE_ALL) return locked ? RESPONSE_FLASH_LOCKED : RESPONSE_OK; // Sector erase is not emulated
+                Arrays.fill(flash, 0);
+                locked = false;
+                return RESPONSE_OK;
+            case MODE_PROTECT_FLASH:
+                locked = true;
+                return RESPONSE_OK;
+            default:
+                return RESPONSE_BLOCK_ERROR;
+        }
+    }
+
+    private void respond(int response)
+    {
+        if (random.nextDouble() < dropRate)
+        {
+            dropped++;
+            return;
+        }
+        responses.add(new long[]{lineFreeAt + latencyNanos + byteNanos, response});
+    }
+}
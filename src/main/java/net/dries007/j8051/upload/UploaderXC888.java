@@ -72,50 +72,92 @@ public class UploaderXC888 extends Uploader
     public static final int PAGE_SIZE = 0x40; // 64 bytes
     //public static final int PAGE_SIZE = 0x20; // 32 bytes
 
+    /**
+     * Tries per block after a checksum error, block error or lost response
+     */
+    public static final int RETRIES = 10;
+    /**
+     * Milliseconds to wait for a response
+     */
+    private static final int TIMEOUT     = 10;
+    private static final int NO_RESPONSE = -1;
+    /**
+     * Longer than any block the loader can be waiting for the rest of
+     */
+    private static final int MAX_BLOCK   = 0x100;
+
     public void upload(String comPort, Integer baudRate, ProgressMonitor pm) throws Exception
+    {
+        upload(getHexFile(), comPort, baudRate, pm);
+    }
+
+    /**
+     * @param hexFile instead of the one of Main.srcFile
+     */
+    public void upload(File hexFile, String comPort, Integer baudRate, ProgressMonitor pm) throws Exception
     {
         NRSerialPort serial = new NRSerialPort(comPort, baudRate);
         if (!serial.connect()) throw new IOException("COM port did not connect.");
-        Page[] pages = parseFile();
+        try
+        {
+            upload(hexFile, serial.getInputStream(), serial.getOutputStream(), pm);
+        }
+        finally
+        {
+            serial.disconnect();
+        }
+    }
+
+    /**
+     * Upload over any pair of streams, like the ones of {@link LoopbackXC888}.
+     *
+     * @param pm may be null
+     */
+    public void upload(InputStream in, OutputStream out, ProgressMonitor pm) throws Exception
+    {
+        upload(getHexFile(), in, out, pm);
+    }
+
+    public void upload(File hexFile, InputStream in, OutputStream out, ProgressMonitor pm) throws Exception
+    {
+        Page[] pages = parseFile(hexFile);
         int count = 0;
         for (Page page : pages) if (page != null) count++;
-        pm.setMaximum(count);
+        if (pm != null) pm.setMaximum(count);
         try
         {
-            InputStream in = serial.getInputStream();
-            OutputStream out = serial.getOutputStream();
-            sendData(in, out, false, INIT); // Init communication
-            sendData(in, out, true, TYPE_HEADER, MODE_ERASE_FLASH, 0x00, 0x00, 0x00, 0x00, OPTION_ERASE_ALL); // Clear all flash
+            init(in, out); // Init communication
+            send(in, out, new int[]{TYPE_HEADER, MODE_ERASE_FLASH, 0x00, 0x00, 0x00, 0x00, OPTION_ERASE_ALL}); // Clear all flash
 
             for (int pageNr = 0; pageNr < pages.length; pageNr++)
             {
                 Page page = pages[pageNr];
                 int address = pageNr * PAGE_SIZE;
-                pm.setNote(String.format("Uploading 0x%04X -> 0x%04X", address, address + PAGE_SIZE));
+                if (pm != null) pm.setNote(String.format("Uploading 0x%04X -> 0x%04X", address, address + PAGE_SIZE));
                 if (page != null)
                 {
-                    sendData(in, out, true, TYPE_HEADER, MODE_DL_FLASH, address >>> 8, address & 0xFF, PAGE_SIZE + 3, 0x00, 0x00);
-                    sendData(in, out, true, page.data);
+                    // Sent again together, the header sets the address the data goes to
+                    send(in, out, new int[]{TYPE_HEADER, MODE_DL_FLASH, address >>> 8, address & 0xFF, PAGE_SIZE + 3, 0x00, 0x00}, page.data);
                 }
-                pm.setProgress(pageNr);
+                if (pm != null) pm.setProgress(pageNr);
             }
-            sendData(in, out, true, TYPE_HEADER, MODE_EX_FLASH, 0x00, 0x00, 0x00, 0x00, 0x00); // Execute from flash
+            send(in, out, new int[]{TYPE_HEADER, MODE_EX_FLASH, 0x00, 0x00, 0x00, 0x00, 0x00}); // Execute from flash
         }
         catch (InterruptedException e)
         {
             e.printStackTrace();
         }
-        finally
-        {
-            serial.disconnect();
-        }
     }
 
-    private Page[] parseFile() throws Exception
+    private static File getHexFile()
     {
-        Page[] pages = new Page[0xFFFF / PAGE_SIZE];
+        return new File(Main.srcFile.getParentFile(), FilenameUtils.getBaseName(Main.srcFile.getName()) + ".hex");
+    }
+
+    private Page[] parseFile(File hexFile) throws Exception
+    {
+        Page[] pages = new Page[0x10000 / PAGE_SIZE];
 
-        File hexFile = new File(Main.srcFile.getParentFile(), FilenameUtils.getBaseName(Main.srcFile.getName()) + ".hex");
         if (!hexFile.exists()) throw new FileNotFoundException(hexFile.getAbsolutePath());
         //noinspection unchecked
         for (String line : (List<String>) FileUtils.readLines(hexFile, PROPERTIES.getProperty(ENCODING, ENCODING_DEFAULT)))
@@ -123,17 +165,105 @@ public class UploaderXC888 extends Uploader
             if (line.length() == 0 || line.charAt(0) != ':') continue;
             int type = Integer.parseInt(line.substring(7, 9), 16);
             if (type != 0) break;
+            int length = Integer.parseInt(line.substring(1, 3), 16);
             int address = Integer.parseInt(line.substring(3, 7), 16);
-            int pageNr = address / PAGE_SIZE;
-            if (pages[pageNr] == null) pages[pageNr] = new Page();
-            Page page = pages[pageNr];
-            page.parse(address, Integer.parseInt(line.substring(1, 3), 16), line);
+            int sum = length + (address & 0xFF) + (address >>> 8);
+            for (int i = 0; i < length; i++)
+            {
+                int bt = Integer.parseInt(line.substring(9 + 2 * i, 9 + 2 * i + 2), 16);
+                sum += bt;
+                // A record can start in one page and end in the next
+                int pageNr = ((address + i) & 0xFFFF) / PAGE_SIZE;
+                if (pages[pageNr] == null) pages[pageNr] = new Page();
+                pages[pageNr].data[(address + i) % PAGE_SIZE + 2] = bt;
+            }
+            if (Integer.parseInt(line.substring(9 + 2 * length, 9 + 2 * length + 2), 16) != (((~sum) + 1) & 0xFF)) throw new Exception("Checksum error in hex file!");
         }
 
         return pages;
     }
 
-    private void sendData(InputStream ins, OutputStream outs, boolean sendCs, int... data) throws IOException, InterruptedException
+    private void init(InputStream in, OutputStream out) throws IOException, InterruptedException
+    {
+        for (int attempt = 1; ; attempt++)
+        {
+            int response = sendData(in, out, false, INIT);
+            // If the answer to an earlier INIT got lost, the loader takes this one as a bad block
+            if (response == RESPONSE_OK || (attempt != 1 && response == RESPONSE_BLOCK_ERROR)) return;
+            if (attempt == RETRIES) throw error(response);
+            drain(in);
+        }
+    }
+
+    /**
+     * Send blocks with checksums, all of them again if one fails because of the line.
+     */
+    private void send(InputStream in, OutputStream out, int[]... blocks) throws IOException, InterruptedException
+    {
+        for (int attempt = 1; ; attempt++)
+        {
+            int response = RESPONSE_OK;
+            for (int[] block : blocks)
+            {
+                response = sendData(in, out, true, block);
+                if (response != RESPONSE_OK) break;
+            }
+            if (response == RESPONSE_OK) return;
+            // A locked flash or a failed verify won't change by trying again
+            if (attempt == RETRIES || (response != RESPONSE_CS_ERROR && response != RESPONSE_BLOCK_ERROR && response != NO_RESPONSE)) throw error(response);
+            resync(in, out);
+        }
+    }
+
+    /**
+     * After an error the loader can be halfway a block. Zeros finish that block (or make an empty header) until it
+     * answers, after that it waits for the start of a block again.
+     */
+    private void resync(InputStream in, OutputStream out) throws IOException, InterruptedException
+    {
+        drain(in);
+        for (int i = 0; i < MAX_BLOCK + 8; i++) if (sendData(in, out, false, 0x00) != NO_RESPONSE) break;
+        drain(in);
+    }
+
+    /**
+     * Throw away the answers to the rest of a broken block, they would be taken as the answer to the next one.
+     */
+    private void drain(InputStream in) throws IOException, InterruptedException
+    {
+        boolean any;
+        do
+        {
+            Thread.sleep(TIMEOUT);
+            any = false;
+            while (in.read() != -1) any = true;
+        }
+        while (any);
+    }
+
+    private IOException error(int response)
+    {
+        switch (response)
+        {
+            case NO_RESPONSE:
+                return new IOException("Timed out while waiting for a response!");
+            case RESPONSE_CS_ERROR:
+                return new IOException("Checksum Error");
+            case RESPONSE_FLASH_LOCKED:
+                return new IOException("Flash Locked");
+            case RESPONSE_VERIFY_ERROR:
+                return new IOException("Verify Error");
+            case RESPONSE_BLOCK_ERROR:
+                return new IOException("Block Error");
+            default:
+                return new IOException(String.format("Unknown response: 0x%02X", response));
+        }
+    }
+
+    /**
+     * @return the response, NO_RESPONSE if there was none in time
+     */
+    private int sendData(InputStream ins, OutputStream outs, boolean sendCs, int... data) throws IOException, InterruptedException
     {
         int cs = 0x00;
         for (int bt : data)
@@ -149,28 +279,14 @@ public class UploaderXC888 extends Uploader
         }
         //System.out.println();
         outs.flush();
-        int timeout = 10;
+        int timeout = TIMEOUT;
         while ((cs = ins.read()) == -1)
         {
             Thread.sleep(1); // Because some operations take a bit of time.
             timeout--;
-            if (timeout == 0) throw new IOException("Timed out while waiting for a response!");
-        }
-        switch (cs)
-        {
-            case RESPONSE_OK:
-                return;
-            case RESPONSE_CS_ERROR:
-                throw new IOException("Checksum Error");
-            case RESPONSE_FLASH_LOCKED:
-                throw new IOException("Flash Locked");
-            case RESPONSE_VERIFY_ERROR:
-                throw new IOException("Verify Error");
-            case RESPONSE_BLOCK_ERROR:
-                throw new IOException("Block Error");
-            default:
-                throw new IOException(String.format("Unknown response: 0x%02X", cs));
+            if (timeout == 0) return NO_RESPONSE;
         }
+        return cs;
     }
 
     private static class Page
@@ -182,19 +298,6 @@ public class UploaderXC888 extends Uploader
             data[0] = TYPE_EOT;
             data[1] = 0x20;
         }
-
-        public void parse(int address, int length, String line) throws Exception
-        {
-            int sum = length + (address & 0xFF) + (address >>> 8);
-            address %= PAGE_SIZE;
-            for (int i = 0; i < length; i++)
-            {
-                int bt = Integer.parseInt(line.substring(9 + 2 * i, 9 + 2 * i + 2), 16);
-                data[address + i + 2] = bt;
-                sum += bt;
-            }
-            if (Integer.parseInt(line.substring(9 + 2 * length, 9 + 2 * length + 2), 16) != (((~sum) + 1) & 0xFF)) throw new Exception("Checksum error in hex file!");
-        }
     }
 
     @Override
@@ -52,6 +52,10 @@ public class Constants
      * Strings
      */
     public static final String SETTINGS_FILENAME  = "./j8051.properties";
+    /**
+     * Per user, so the GUI, the daemon and project builds share it, wherever they were started
+     */
+    public static final String PCH_FOLDER         = System.getProperty("user.home") + File.separator + ".j8051" + File.separator + "pch";
     public static final String SETTINGS_COMMENT   = "Settings file for j8051";
     public static final String SRC_FILE           = "srcFile";
     public static final String WINDOW_H           = "window.h";
@@ -67,6 +71,8 @@ public class Constants
     public static final String FIND_OPACITY       = "find.opacity";
     public static final String AUTO_COMPILE       = "auto.compile";
     public static final String AUTO_SAVE          = "auto.save";
+    public static final String OPTIMIZE           = "optimize";
+    public static final String STRIP              = "strip";
     public static final String ENCODING           = "encoding";
     public static final String ENCODING_DEFAULT   = null;
     public static final String ENCODING_ANSI      = "CP1252";
@@ -88,23 +94,26 @@ public class Constants
      */
     public static final Pattern INCLUDE_A = Pattern.compile("^\\s*#include\\s+\"(.*)\"\\s*$", CASE_INSENSITIVE);
     public static final Pattern INCLUDE_R = Pattern.compile("^\\s*#include\\s+<(.*)>\\s*$", CASE_INSENSITIVE);
-    public static final Pattern DEFINE    = Pattern.compile("^\\s*#define\\s+(\\w+?)(?:\\((.*)\\))? (.*)$", CASE_INSENSITIVE);
+    public static final Pattern DEFINE    = Pattern.compile("^\\s*#define\\s+(\\w+)(?:\\((.*?)\\))?(?:\\s+(.*))?$", CASE_INSENSITIVE);
     public static final Pattern UNDEFINE  = Pattern.compile("^\\s*#undefine\\s+(\\w+?)\\s*$", CASE_INSENSITIVE);
     public static final Pattern IFDEF     = Pattern.compile("^\\s*#ifdef\\s+(\\w+?)\\s*$", CASE_INSENSITIVE);
     public static final Pattern IFNDEF    = Pattern.compile("^\\s*#ifndef\\s+(\\w+?)\\s*$", CASE_INSENSITIVE);
-    public static final Pattern ELSE      = Pattern.compile("^\\s*#else \\s*$", CASE_INSENSITIVE);
+    public static final Pattern IF        = Pattern.compile("^\\s*#if\\s+(.+?)\\s*$", CASE_INSENSITIVE);
+    public static final Pattern ELIF      = Pattern.compile("^\\s*#elif\\s+(.+?)\\s*$", CASE_INSENSITIVE);
+    public static final Pattern ELSE      = Pattern.compile("^\\s*#else\\s*$", CASE_INSENSITIVE);
     public static final Pattern ENDIF     = Pattern.compile("^\\s*#endif\\s*$", CASE_INSENSITIVE);
-
-    public static final Pattern STRING = Pattern.compile("\"(.*?)\"");
-    public static final Pattern CHAR   = Pattern.compile("'(.)'");
+    public static final Pattern KEEP      = Pattern.compile("^\\s*#keep\\s+(\\w+?)\\s*$", CASE_INSENSITIVE);
+    public static final Pattern EXTERN    = Pattern.compile("^\\s*#extern\\s+(\\w+(?:\\s*,\\s*\\w+)*)\\s*$", CASE_INSENSITIVE);
+    public static final Pattern PUBLIC    = Pattern.compile("^\\s*#public\\s+(\\w+(?:\\s*,\\s*\\w+)*)\\s*$", CASE_INSENSITIVE);
+    public static final Pattern DEFINED   = Pattern.compile("\\bdefined\\s*\\(\\s*(\\w+)\\s*\\)");
 
     public static final Pattern EQU   = Pattern.compile("(\\w+)\\s+equ\\s", CASE_INSENSITIVE);
     public static final Pattern DATA  = Pattern.compile("(\\w+)\\s+data\\s", CASE_INSENSITIVE);
     public static final Pattern BIT   = Pattern.compile("(\\w+)\\s+bit\\s", CASE_INSENSITIVE);
     public static final Pattern LABEL = Pattern.compile("(\\w+):");
 
-    public static final Pattern DB = Pattern.compile("db\\s+((.+?)\\b(?:,\\s*(?:.+?)\\b)*)", CASE_INSENSITIVE);
-    public static final Pattern DW = Pattern.compile("dw\\s+((.+?)\\b(?:,\\s*(?:.+?)\\b)*)", CASE_INSENSITIVE);
+    public static final Pattern DB = Pattern.compile("db\\s+(.*\\b)", CASE_INSENSITIVE); // Up to the last word boundary, without backtracking per element
+    public static final Pattern DW = Pattern.compile("dw\\s+(.*\\b)", CASE_INSENSITIVE);
     public static final Pattern DS = Pattern.compile("ds\\s+(.+?)\\b(?:\\s*<<\\s*(.+?)\\b)?", CASE_INSENSITIVE);
 
     public static final Pattern ORG = Pattern.compile("(?:^|\\s+)org(?:$|\\s+)", CASE_INSENSITIVE);
@@ -135,7 +144,7 @@ public class Constants
             @Override
             public void run()
             {
-                saveProperties();
+                if (!PROPERTIES.isEmpty()) saveProperties(); // Nothing was set when used as a library, see Image
             }
         }));
     }
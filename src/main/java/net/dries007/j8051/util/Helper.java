@@ -44,11 +44,11 @@ public class Helper
 
     public static int parseToInt(String string)
     {
+        if (string.startsWith("0x")) return Integer.parseInt(string.substring(2), 16); // Before the suffixes, 0x1B is not binary
         char last = string.charAt(string.length() - 1);
         if (last == 'b' || last == 'B') return Integer.parseInt(string.substring(0, string.length() - 1), 2);
         if (last == 'h' || last == 'H') return Integer.parseInt(string.substring(0, string.length() - 1), 16);
         if (last == 'o' || last == 'O') return Integer.parseInt(string.substring(0, string.length() - 1), 8);
-        if (string.startsWith("0x")) return Integer.parseInt(string.substring(2), 16);
         return Integer.parseInt(string);
     }
 